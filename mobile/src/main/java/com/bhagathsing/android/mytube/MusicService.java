@@ -26,6 +26,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.MediaBrowserServiceCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -34,7 +35,9 @@ import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v7.media.MediaRouter;
 
+import com.bhagathsing.android.mytube.model.CatalogLoad;
 import com.bhagathsing.android.mytube.model.MusicProvider;
+import com.bhagathsing.android.mytube.model.MytubeSource;
 import com.bhagathsing.android.mytube.playback.CastPlayback;
 import com.bhagathsing.android.mytube.playback.LocalPlayback;
 import com.bhagathsing.android.mytube.playback.Playback;
@@ -43,6 +46,7 @@ import com.bhagathsing.android.mytube.playback.QueueManager;
 import com.bhagathsing.android.mytube.ui.NowPlayingActivity;
 import com.bhagathsing.android.mytube.utils.CarHelper;
 import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.MediaIDHelper;
 import com.bhagathsing.android.mytube.utils.TvHelper;
 import com.bhagathsing.android.mytube.utils.WearHelper;
 import com.google.android.gms.cast.framework.CastContext;
@@ -136,8 +140,11 @@ public class MusicService extends MediaBrowserServiceCompat implements
     public static final String CMD_STOP_CASTING = "CMD_STOP_CASTING";
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 30000;
+    // Page size for clients asking for a page without saying how large.
+    private static final int DEFAULT_PAGE_SIZE = 50;
 
     private MusicProvider mMusicProvider;
+    private CatalogLoad mCatalogLoad;
     private PlaybackManager mPlaybackManager;
 
     private MediaSessionCompat mSession;
@@ -163,10 +170,24 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
         mMusicProvider = new MusicProvider();
 
+        // Lists already showing a genre are sent the tracks added to it afterwards, including
+        // those of a remote catalog arriving after the local one.
+        MusicProvider.setOnGenreChangedListener(new MusicProvider.OnGenreChangedListener() {
+            @Override
+            public void onGenreChanged(String genre) {
+                notifyChildrenChanged(MediaIDHelper.createMediaID(
+                        null, MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE, genre));
+            }
+
+            @Override
+            public void onGenreListChanged() {
+                notifyChildrenChanged(MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE);
+            }
+        });
         // To make the app more responsive, fetch and cache catalog information now.
         // This can help improve the response time in the method
         // {@link #onLoadChildren(String, Result<List<MediaItem>>) onLoadChildren()}.
-        mMusicProvider.retrieveMediaAsync(null /* Callback */);
+        mCatalogLoad = mMusicProvider.retrieveMediaAsync(null /* Callback */);
 
         mPackageValidator = new PackageValidator(this);
 
@@ -298,6 +319,11 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mSession.release();
+        // Nobody is left to use the catalog if it is still loading.
+        mCatalogLoad.cancel();
+        MusicProvider.setOnGenreChangedListener(null);
+        MytubeSource.flush();
+        MusicProvider.flushFavorites();
     }
 
     @Override
@@ -337,19 +363,48 @@ public class MusicService extends MediaBrowserServiceCompat implements
     @Override
     public void onLoadChildren(@NonNull final String parentMediaId,
                                @NonNull final Result<List<MediaItem>> result) {
-        LogHelper.d("Kangtle", "OnLoadChildren: parentMediaId=", parentMediaId);
+        loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Paged version, for clients passing {@link MediaBrowserCompat#EXTRA_PAGE} and
+     * {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}: large genres are sent a page at a time
+     * rather than in a single binder transaction.
+     */
+    @Override
+    public void onLoadChildren(@NonNull final String parentMediaId,
+                               @NonNull final Result<List<MediaItem>> result,
+                               @NonNull Bundle options) {
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 && pageSize < 1) {
+            loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+        } else {
+            // A client giving only one of the two still gets children: the first page, or
+            // pages of the default size.
+            loadChildren(parentMediaId, result, Math.max(page, 0),
+                    pageSize < 1 ? DEFAULT_PAGE_SIZE : pageSize);
+        }
+    }
+
+    private void loadChildren(final String parentMediaId, final Result<List<MediaItem>> result,
+                              final int page, final int pageSize) {
+        LogHelper.d("Kangtle", "OnLoadChildren: parentMediaId=", parentMediaId,
+                " page=", page, " pageSize=", pageSize);
         if (MEDIA_ID_EMPTY_ROOT.equals(parentMediaId)) {
             result.sendResult(new ArrayList<MediaItem>());
         } else if (mMusicProvider.isInitialized()) {
             // if music library is ready, return immediately
-            result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+            result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources(),
+                    page, pageSize));
         } else {
             // otherwise, only return results when the music library is retrieved
             result.detach();
             mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
                 @Override
                 public void onMusicCatalogReady(boolean success) {
-                    result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+                    result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources(),
+                            page, pageSize));
                 }
             });
         }
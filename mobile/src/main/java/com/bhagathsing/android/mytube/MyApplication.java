@@ -5,6 +5,9 @@ import android.content.Context;
 import android.support.multidex.MultiDex;
 import android.support.multidex.MultiDexApplication;
 
+import com.bhagathsing.android.mytube.model.MusicProvider;
+import com.bhagathsing.android.mytube.model.MytubeSource;
+
 public class MyApplication extends MultiDexApplication {
     // Called when the application is starting, before any other application objects have been created.
     // Overriding this method is totally optional!
@@ -17,6 +20,15 @@ public class MyApplication extends MultiDexApplication {
         // Required initialization logic here!
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // We may be killed from here on, don't lose catalog changes or favorites still waiting
+        // to be written.
+        MytubeSource.flush();
+        MusicProvider.flushFavorites();
+    }
+
     @Override
     protected void attachBaseContext(Context newBase) {
         super.attachBaseContext(newBase);
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube;
+
+import android.app.SearchManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.bhagathsing.android.mytube.model.MusicProvider;
+
+import java.util.List;
+
+/**
+ * Type-ahead suggestions for the SearchView, answered from the titles, albums and categories
+ * already known to the {@link MusicProvider}, without any network request.
+ * Picking a suggestion searches for it, see res/xml/searchable.xml.
+ */
+public class SearchSuggestionsProvider extends ContentProvider {
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    private static final String[] COLUMNS = {
+            BaseColumns._ID,
+            SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_QUERY
+    };
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        String query = selectionArgs != null && selectionArgs.length > 0
+                ? selectionArgs[0] : uri.getLastPathSegment();
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        if (query == null || SearchManager.SUGGEST_URI_PATH_QUERY.equals(query)) {
+            return cursor;
+        }
+        int limit = DEFAULT_LIMIT;
+        String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        List<String> suggestions = MusicProvider.getSuggestionIndex().lookup(query, limit);
+        for (int i = 0; i < suggestions.size(); i++) {
+            String suggestion = suggestions.get(i);
+            cursor.addRow(new Object[] {i, suggestion, suggestion});
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return SearchManager.SUGGEST_MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
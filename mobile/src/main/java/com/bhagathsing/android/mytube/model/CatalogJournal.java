@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
+
+import com.bhagathsing.android.mytube.utils.FileHelper;
+import com.bhagathsing.android.mytube.utils.LogHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reader of the musictube.json catalog and its append-only journal, the way earlier versions
+ * kept the local catalog: the full catalog is the JSON snapshot with every journal record
+ * replayed on top of it. {@link MusicCatalogDatabase} imports it once; nothing writes either
+ * file any more.
+ */
+public class CatalogJournal {
+
+    private static final String TAG = LogHelper.makeLogTag(CatalogJournal.class);
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+
+    public CatalogJournal(File snapshotFile, File journalFile) {
+        mSnapshotFile = snapshotFile;
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Read the snapshot and replay the journal on top of it. An unreadable snapshot is
+     * logged and read as empty.
+     */
+    public LocalCatalog load() {
+        LocalCatalog catalog = new LocalCatalog();
+        if (mSnapshotFile.length() > 0) {
+            JsonCatalogReader reader = null;
+            try {
+                reader = new JsonCatalogReader(new BufferedReader(new InputStreamReader(
+                        new FileInputStream(mSnapshotFile), FileHelper.CHARSET))) {
+                    @Override
+                    protected MediaMetadataCompat readTrack(JsonReader in) throws IOException {
+                        return LocalCatalog.readTrack(in);
+                    }
+                };
+                while (reader.hasNext()) {
+                    catalog.addTrack(reader.next());
+                }
+                for (String category : reader.getCategories()) {
+                    catalog.addCategory(category);
+                }
+            } catch (IOException | RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not parse catalog snapshot");
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+        replay(catalog);
+        return catalog;
+    }
+
+    private void replay(LocalCatalog catalog) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mJournalFile), FileHelper.CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    catalog.apply(new JSONObject(line));
+                } catch (JSONException e) {
+                    // A torn write at the tail of the journal: everything before it is intact.
+                    LogHelper.w(TAG, "Skipping unreadable journal record: ", line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No mutations since the last compaction.
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not replay catalog journal");
+        } finally {
+            FileHelper.closeQuietly(reader);
+        }
+    }
+}
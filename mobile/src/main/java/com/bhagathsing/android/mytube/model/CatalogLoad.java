@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A load of the music catalog, shared by everyone who asked for the catalog while it was
+ * running: see {@link MusicProvider#retrieveMediaAsync(MusicProvider.Callback)}.
+ *
+ * Callbacks are called once, on the main thread, when the load is over; callbacks added
+ * after that are called right away. Cancelling stops the load at the next track and reports
+ * a failure to every callback still attached.
+ */
+public class CatalogLoad {
+
+    private final List<MusicProvider.Callback> mCallbacks = new ArrayList<>();
+    private volatile boolean mCancelled;
+    private boolean mDone;
+    private boolean mSuccess;
+
+    CatalogLoad() {
+    }
+
+    /**
+     * @return a load that is already over, for callers asking when the catalog is ready.
+     */
+    static CatalogLoad finished(boolean success) {
+        CatalogLoad load = new CatalogLoad();
+        load.finish(success);
+        return load;
+    }
+
+    public void addCallback(MusicProvider.Callback callback) {
+        boolean success;
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return;
+            }
+            success = mSuccess;
+        }
+        callback.onMusicCatalogReady(success);
+    }
+
+    /**
+     * Detach a callback, for a caller that is going away. The load goes on for the others.
+     *
+     * @return true if the callback was still waiting for the load.
+     */
+    public synchronized boolean removeCallback(MusicProvider.Callback callback) {
+        return mCallbacks.remove(callback);
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void finish(boolean success) {
+        List<MusicProvider.Callback> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mSuccess = success;
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+        }
+        for (MusicProvider.Callback callback : callbacks) {
+            callback.onMusicCatalogReady(success);
+        }
+    }
+}
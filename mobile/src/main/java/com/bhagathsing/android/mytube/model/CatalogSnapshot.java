@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable version of the music catalog: the tracks by media ID and by genre.
+ *
+ * A snapshot never changes once built, so readers can use it from any thread without
+ * locking and never see a half-updated genre. Changes go through an {@link Editor}, which
+ * builds the next snapshot, with the next epoch, sharing everything it didn't touch with
+ * this one: the tracks by ID are split into shards, so adding or removing a track copies a
+ * single shard and the genre it belongs to rather than the whole catalog.
+ *
+ * Tracks themselves are ordinals in a {@link TrackStore} shared by the snapshots, so a
+ * replaced track gets a new ordinal rather than being written over in the store; a shard
+ * maps the 64-bit key of each media ID to its ordinal, see {@link TrackIdHelper#toKey}. Two
+ * tracks with the same key but different IDs are a collision: the second one is logged and
+ * left out, never mistaken for the first. Sources have shards of their own, from the key of
+ * each source to the ordinals of its tracks in every genre, so a track is found by source
+ * without going through the genres.
+ */
+public class CatalogSnapshot {
+
+    private static final String TAG = LogHelper.makeLogTag(CatalogSnapshot.class);
+
+    public static final CatalogSnapshot EMPTY = of(0, new TrackStore(), new int[0], 0);
+
+    private static final int SHARD_COUNT = 64;
+    // Copy the live tracks to a new store once it has this many times more tracks.
+    private static final int STORE_SLACK = 2;
+    private static final int MIN_STORE_SIZE = 256;
+
+    private final int mEpoch;
+    private final TrackStore mStore;
+    private final LongOrdinalMap[] mShards;
+    private final LongOrdinalMap[] mSources;
+    private final int mSize;
+    private final Map<String, SortedTrackList> mGenres;
+    // The genres in a fixed order, with the number of tracks up to the end of each: finds
+    // the track at an index without copying the tracks, see getMusicList().
+    private final SortedTrackList[] mGenreLists;
+    private final int[] mGenreEnds;
+
+    private CatalogSnapshot(int epoch, TrackStore store, LongOrdinalMap[] shards,
+                            LongOrdinalMap[] sources, int size,
+                            Map<String, SortedTrackList> genres) {
+        mEpoch = epoch;
+        mStore = store;
+        mShards = shards;
+        mSources = sources;
+        mSize = size;
+        mGenres = genres;
+        mGenreLists = genres.values().toArray(new SortedTrackList[genres.size()]);
+        mGenreEnds = new int[mGenreLists.length];
+        int end = 0;
+        for (int i = 0; i < mGenreLists.length; i++) {
+            end += mGenreLists[i].size();
+            mGenreEnds[i] = end;
+        }
+    }
+
+    /**
+     * Build a snapshot from scratch over tracks of the store, sorting each genre once.
+     * Of the tracks with the same media ID, the first one is kept.
+     */
+    static CatalogSnapshot of(int epoch, TrackStore store, int[] ordinals, int count) {
+        LongOrdinalMap[] shards = new LongOrdinalMap[SHARD_COUNT];
+        LongOrdinalMap[] sources = new LongOrdinalMap[SHARD_COUNT];
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new LongOrdinalMap();
+            sources[i] = new LongOrdinalMap();
+        }
+        int size = 0;
+        Map<String, OrdinalList> tracksByGenre = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int ordinal = ordinals[i];
+            String musicId = store.getMediaId(ordinal);
+            long key = TrackIdHelper.toKey(musicId);
+            int existing = shards[shardOf(key)].putIfAbsent(key, ordinal);
+            if (existing >= 0) {
+                if (!musicId.equals(store.getMediaId(existing))) {
+                    logCollision(store, existing, musicId, store.getSource(ordinal));
+                }
+                continue;
+            }
+            size++;
+            String genre = store.getGenre(ordinal);
+            OrdinalList list = tracksByGenre.get(genre);
+            if (list == null) {
+                list = new OrdinalList();
+                tracksByGenre.put(genre, list);
+            }
+            list.add(ordinal);
+        }
+        Map<String, SortedTrackList> genres = new HashMap<>();
+        for (Map.Entry<String, OrdinalList> entry : tracksByGenre.entrySet()) {
+            OrdinalList list = entry.getValue();
+            SortedTrackList sorted = SortedTrackList.of(store, list.values, list.size);
+            // The tracks the list kept, not the ones it dropped for having a known source.
+            for (int i = 0; i < sorted.size(); i++) {
+                int ordinal = sorted.getOrdinal(i);
+                long sourceKey = sourceKey(store.getSource(ordinal));
+                sources[shardOf(sourceKey)].add(sourceKey, ordinal);
+            }
+            genres.put(entry.getKey(), sorted);
+        }
+        return new CatalogSnapshot(epoch, store, shards, sources, size, genres);
+    }
+
+    /**
+     * Incremented by every change, so caches derived from a snapshot know when to rebuild.
+     */
+    public int getEpoch() {
+        return mEpoch;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the same catalog with another epoch, for a catalog built aside to take over
+     * from the current one.
+     */
+    CatalogSnapshot withEpoch(int epoch) {
+        return new CatalogSnapshot(epoch, mStore, mShards, mSources, mSize, mGenres);
+    }
+
+    /**
+     * @return the track with the given (non-hierarchical) media ID, or null.
+     */
+    public MediaMetadataCompat getMusic(String musicId) {
+        int ordinal = getOrdinal(musicId);
+        return ordinal < 0 ? null : mStore.get(ordinal);
+    }
+
+    /**
+     * @return the ordinal in the store of the track with the given media ID, or -1.
+     */
+    int getOrdinal(String musicId) {
+        return musicId == null ? -1 : find(mShards, mStore, musicId);
+    }
+
+    TrackStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * @return the ordinals of every track, in no particular order.
+     */
+    int[] getOrdinals() {
+        int[] ordinals = new int[mSize];
+        int count = 0;
+        for (LongOrdinalMap shard : mShards) {
+            count = shard.copyOrdinals(ordinals, count);
+        }
+        return ordinals;
+    }
+
+    /**
+     * @return every track, genre after genre, as a read-only random access list: getting
+     * a track by index takes a binary search over the genres, nothing is copied.
+     */
+    public List<MediaMetadataCompat> getMusicList() {
+        return new AbstractList<MediaMetadataCompat>() {
+            @Override
+            public MediaMetadataCompat get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+                }
+                // First genre ending after the index.
+                int low = 0;
+                int high = mGenreEnds.length - 1;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (mGenreEnds[mid] <= index) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                int start = low == 0 ? 0 : mGenreEnds[low - 1];
+                return mGenreLists[low].getTracks().get(index - start);
+            }
+
+            @Override
+            public int size() {
+                return mGenreEnds.length == 0 ? 0 : mGenreEnds[mGenreEnds.length - 1];
+            }
+        };
+    }
+
+    public Set<String> getGenres() {
+        return Collections.unmodifiableSet(mGenres.keySet());
+    }
+
+    /**
+     * @return the tracks of the genre sorted by title, or an empty list.
+     */
+    public List<MediaMetadataCompat> getMusicsByGenre(String genre) {
+        SortedTrackList list = mGenres.get(genre);
+        return list == null ? Collections.<MediaMetadataCompat>emptyList() : list.getTracks();
+    }
+
+    /**
+     * @return the sorted tracks of the genre, or null.
+     */
+    SortedTrackList getGenreList(String genre) {
+        return mGenres.get(genre);
+    }
+
+    /**
+     * @return the track with the given source in the genre, or null.
+     */
+    public MediaMetadataCompat findMusic(String genre, String source) {
+        SortedTrackList list = mGenres.get(genre);
+        return list == null ? null : list.findBySource(source);
+    }
+
+    public Editor edit() {
+        return new Editor(this);
+    }
+
+    // Keys are well mixed hashes: their low bits pick the shard.
+    private static int shardOf(long key) {
+        return (int) key & (SHARD_COUNT - 1);
+    }
+
+    private static long sourceKey(String source) {
+        return TrackIdHelper.toKey(source == null ? "" : source);
+    }
+
+    private static boolean sameSource(String source1, String source2) {
+        return source1 == null ? source2 == null : source1.equals(source2);
+    }
+
+    /**
+     * @return the ordinal of the track with the given ID, or -1; not the ordinal of another
+     * track whose ID has the same key.
+     */
+    private static int find(LongOrdinalMap[] shards, TrackStore store, String musicId) {
+        long key = TrackIdHelper.toKey(musicId);
+        int ordinal = shards[shardOf(key)].get(key);
+        return ordinal >= 0 && musicId.equals(store.getMediaId(ordinal)) ? ordinal : -1;
+    }
+
+    private static void logCollision(TrackStore store, int kept, String musicId, String source) {
+        LogHelper.e(TAG, "Media ID collision, leaving out ", source, " (", musicId,
+                "): same key as ", store.getSource(kept), " (", store.getMediaId(kept), ")");
+    }
+
+    private static class OrdinalList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Collects changes to a snapshot, copying each shard and genre the first time it's
+     * changed. Not thread safe: one writer at a time, and an editor can't be used any more
+     * once built.
+     */
+    public static class Editor {
+        private final CatalogSnapshot mBase;
+        private final TrackStore mStore;
+        private final LongOrdinalMap[] mShards;
+        private final boolean[] mCopiedShards = new boolean[SHARD_COUNT];
+        private final LongOrdinalMap[] mSources;
+        private final boolean[] mCopiedSources = new boolean[SHARD_COUNT];
+        private int mSize;
+        private Map<String, SortedTrackList> mGenres;
+        private boolean mChanged;
+        private boolean mBuilt;
+
+        private Editor(CatalogSnapshot base) {
+            mBase = base;
+            mStore = base.mStore;
+            mShards = base.mShards.clone();
+            mSources = base.mSources.clone();
+            mSize = base.mSize;
+            mGenres = base.mGenres;
+        }
+
+        /**
+         * Add a track to its genre, unless the genre already has a track with its source.
+         *
+         * @return true if the track was added.
+         */
+        public boolean addTrack(MediaMetadataCompat metadata) {
+            checkNotBuilt();
+            if (!canAdd(metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID),
+                    metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE),
+                    metadata.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE))) {
+                return false;
+            }
+            insert(mStore.add(metadata));
+            return true;
+        }
+
+        /**
+         * Add a track already in {@link #getStore()}, see
+         * {@link #addTrack(MediaMetadataCompat)}.
+         */
+        boolean addTrack(int ordinal) {
+            checkNotBuilt();
+            if (!canAdd(mStore.getMediaId(ordinal), mStore.getGenre(ordinal),
+                    mStore.getSource(ordinal))) {
+                return false;
+            }
+            insert(ordinal);
+            return true;
+        }
+
+        /**
+         * Remove the tracks with the given source from every genre.
+         *
+         * @return the ordinals of the removed tracks in {@link #getStore()}.
+         */
+        int[] removeSource(String source) {
+            long sourceKey = sourceKey(source);
+            int[] ordinals = mSources[shardOf(sourceKey)].getAll(sourceKey);
+            int count = 0;
+            for (int ordinal : ordinals) {
+                // Another source with the same key.
+                if (!sameSource(source, mStore.getSource(ordinal))) {
+                    continue;
+                }
+                String genre = mStore.getGenre(ordinal);
+                genres().put(genre, mGenres.get(genre).withoutSource(source));
+                sources(sourceKey).remove(sourceKey, ordinal);
+                removeId(mStore.getMediaId(ordinal));
+                ordinals[count++] = ordinal;
+            }
+            return Arrays.copyOf(ordinals, count);
+        }
+
+        /**
+         * Remove a genre and all of its tracks.
+         *
+         * @return the ordinals of the removed tracks in {@link #getStore()}.
+         */
+        int[] removeGenre(String genre) {
+            if (!mGenres.containsKey(genre)) {
+                return new int[0];
+            }
+            SortedTrackList list = genres().remove(genre);
+            int[] ordinals = new int[list.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = list.getOrdinal(i);
+                long sourceKey = sourceKey(mStore.getSource(ordinals[i]));
+                sources(sourceKey).remove(sourceKey, ordinals[i]);
+                removeId(mStore.getMediaId(ordinals[i]));
+            }
+            return ordinals;
+        }
+
+        /**
+         * @return the store the tracks of the next snapshot are added to.
+         */
+        TrackStore getStore() {
+            return mStore;
+        }
+
+        /**
+         * Replace the metadata of a track by a version with more keys, like its album art.
+         * The title, source and genre must not change.
+         *
+         * @return false if there is no track with that ID.
+         */
+        public boolean replaceTrack(String musicId, MediaMetadataCompat metadata) {
+            checkNotBuilt();
+            int ordinal = find(mShards, mStore, musicId);
+            if (ordinal < 0) {
+                return false;
+            }
+            // A new ordinal: the store is shared with published snapshots, which must keep
+            // seeing the old version.
+            replace(ordinal, mStore.add(metadata));
+            return true;
+        }
+
+        /**
+         * Replace a track by a version already in {@link #getStore()}, see
+         * {@link #replaceTrack(String, MediaMetadataCompat)}.
+         */
+        boolean replaceTrack(String musicId, int newOrdinal) {
+            checkNotBuilt();
+            int ordinal = find(mShards, mStore, musicId);
+            if (ordinal < 0) {
+                return false;
+            }
+            replace(ordinal, newOrdinal);
+            return true;
+        }
+
+        private void replace(int ordinal, int newOrdinal) {
+            String musicId = mStore.getMediaId(ordinal);
+            long key = TrackIdHelper.toKey(musicId);
+            shard(key).replace(key, newOrdinal);
+            String genre = mStore.getGenre(ordinal);
+            SortedTrackList list = mGenres.get(genre);
+            SortedTrackList replaced =
+                    list == null ? null : list.withOrdinalReplaced(ordinal, newOrdinal);
+            if (replaced != list) {
+                genres().put(genre, replaced);
+                long sourceKey = sourceKey(mStore.getSource(ordinal));
+                LongOrdinalMap sources = sources(sourceKey);
+                sources.remove(sourceKey, ordinal);
+                sources.add(sourceKey, newOrdinal);
+            }
+        }
+
+        /**
+         * @return the next snapshot, or the original one if nothing changed.
+         */
+        public CatalogSnapshot build() {
+            mBuilt = true;
+            if (!mChanged) {
+                return mBase;
+            }
+            CatalogSnapshot snapshot = new CatalogSnapshot(mBase.mEpoch + 1, mStore, mShards,
+                    mSources, mSize, mGenres);
+            if (mStore.size() > MIN_STORE_SIZE && mStore.size() > STORE_SLACK * mSize) {
+                return compact(snapshot);
+            }
+            return snapshot;
+        }
+
+        /**
+         * Copy the tracks of the snapshot to a new store, leaving behind the removed ones.
+         */
+        private static CatalogSnapshot compact(CatalogSnapshot snapshot) {
+            TrackStore store = new TrackStore();
+            int[] newOrdinals = new int[snapshot.mStore.size()];
+            Arrays.fill(newOrdinals, -1);
+            for (int ordinal : snapshot.getOrdinals()) {
+                copy(snapshot.mStore, ordinal, store, newOrdinals);
+            }
+            LongOrdinalMap[] shards = new LongOrdinalMap[SHARD_COUNT];
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                shards[i] = snapshot.mShards[i].withOrdinals(newOrdinals);
+            }
+            Map<String, SortedTrackList> genres = new HashMap<>();
+            for (Map.Entry<String, SortedTrackList> entry : snapshot.mGenres.entrySet()) {
+                SortedTrackList list = entry.getValue();
+                for (int i = 0; i < list.size(); i++) {
+                    copy(snapshot.mStore, list.getOrdinal(i), store, newOrdinals);
+                }
+                genres.put(entry.getKey(), list.withStore(store, newOrdinals));
+            }
+            // Sources only have tracks of the genres, all copied by now.
+            LongOrdinalMap[] sources = new LongOrdinalMap[SHARD_COUNT];
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                sources[i] = snapshot.mSources[i].withOrdinals(newOrdinals);
+            }
+            return new CatalogSnapshot(snapshot.mEpoch, store, shards, sources, snapshot.mSize,
+                    genres);
+        }
+
+        private static int copy(TrackStore from, int ordinal, TrackStore to, int[] newOrdinals) {
+            if (newOrdinals[ordinal] < 0) {
+                newOrdinals[ordinal] = to.copy(from, ordinal);
+            }
+            return newOrdinals[ordinal];
+        }
+
+        // Whether the genre has no track with the source yet, and no other ID has the key.
+        private boolean canAdd(String musicId, String genre, String source) {
+            SortedTrackList list = mGenres.get(genre);
+            if (list != null && list.containsSource(source)) {
+                return false;
+            }
+            long key = TrackIdHelper.toKey(musicId);
+            int existing = mShards[shardOf(key)].get(key);
+            if (existing >= 0 && !musicId.equals(mStore.getMediaId(existing))) {
+                logCollision(mStore, existing, musicId, source);
+                return false;
+            }
+            return true;
+        }
+
+        private void insert(int ordinal) {
+            String genre = mStore.getGenre(ordinal);
+            SortedTrackList list = mGenres.get(genre);
+            if (list == null) {
+                list = SortedTrackList.empty(mStore);
+            }
+            long sourceKey = sourceKey(mStore.getSource(ordinal));
+            sources(sourceKey).add(sourceKey, ordinal);
+            long key = TrackIdHelper.toKey(mStore.getMediaId(ordinal));
+            LongOrdinalMap shard = shard(key);
+            if (shard.get(key) >= 0) {
+                // Same ID in another genre: the new track replaces it in the lookup by ID.
+                shard.replace(key, ordinal);
+            } else {
+                shard.putIfAbsent(key, ordinal);
+                mSize++;
+            }
+            genres().put(genre, list.withTrack(ordinal));
+        }
+
+        private void removeId(String musicId) {
+            if (find(mShards, mStore, musicId) >= 0) {
+                long key = TrackIdHelper.toKey(musicId);
+                shard(key).remove(key);
+                mSize--;
+            }
+        }
+
+        // The shard of the key, copied for this editor.
+        private LongOrdinalMap shard(long key) {
+            checkNotBuilt();
+            int index = shardOf(key);
+            if (!mCopiedShards[index]) {
+                mShards[index] = mShards[index].copy();
+                mCopiedShards[index] = true;
+            }
+            mChanged = true;
+            return mShards[index];
+        }
+
+        // The source shard of the key, copied for this editor.
+        private LongOrdinalMap sources(long sourceKey) {
+            checkNotBuilt();
+            int index = shardOf(sourceKey);
+            if (!mCopiedSources[index]) {
+                mSources[index] = mSources[index].copy();
+                mCopiedSources[index] = true;
+            }
+            mChanged = true;
+            return mSources[index];
+        }
+
+        private Map<String, SortedTrackList> genres() {
+            checkNotBuilt();
+            if (mGenres == mBase.mGenres) {
+                mGenres = new HashMap<>(mGenres);
+            }
+            mChanged = true;
+            return mGenres;
+        }
+
+        private void checkNotBuilt() {
+            if (mBuilt) {
+                throw new IllegalStateException("Catalog editor already built");
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several sources as one: the local catalog and a remote one, for instance.
+ *
+ * The sources are loaded in parallel, on a small pool shared by all composites, and their
+ * tracks come out source by source in the order the sources finish, see {@link #batches()}:
+ * the provider can publish the local tracks while a slow remote catalog is still loading.
+ * Tracks with the media ID of a track already returned are dropped, and a source that
+ * fails is logged and skipped rather than failing the others. So is a source still loading
+ * {@link #LOAD_TIMEOUT_MS} after the load started: it is cancelled, not waited for.
+ */
+public class CompositeSource implements MusicProviderSource {
+
+    private static final String TAG = LogHelper.makeLogTag(CompositeSource.class);
+
+    private static final int MAX_PARALLEL_LOADS = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long LOAD_TIMEOUT_MS = 60 * 1000;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_LOADS, MAX_PARALLEL_LOADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final List<MusicProviderSource> mSources;
+
+    public CompositeSource(MusicProviderSource... sources) {
+        mSources = Collections.unmodifiableList(Arrays.asList(sources));
+    }
+
+    /**
+     * Start loading every source.
+     *
+     * @return the tracks of each source, in the order the sources finish loading. Waiting for
+     * the next source blocks, so iterate off the main thread.
+     */
+    public Batches batches() {
+        return new Batches(mSources);
+    }
+
+    /**
+     * @return the tracks of all sources, as they finish loading.
+     */
+    @Override
+    public Iterator<MediaMetadataCompat> iterator() {
+        final Batches batches = batches();
+        return new Iterator<MediaMetadataCompat>() {
+            private Iterator<MediaMetadataCompat> mBatch =
+                    Collections.<MediaMetadataCompat>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!mBatch.hasNext() && batches.hasNext()) {
+                    mBatch = batches.next().iterator();
+                }
+                return mBatch.hasNext();
+            }
+
+            @Override
+            public MediaMetadataCompat next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mBatch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the categories of all sources, without duplicates, or null if none has any.
+     */
+    @Override
+    public Iterable<String> categories() {
+        Set<String> categories = null;
+        for (MusicProviderSource source : mSources) {
+            Iterable<String> sourceCategories = source.categories();
+            if (sourceCategories == null) {
+                continue;
+            }
+            if (categories == null) {
+                categories = new LinkedHashSet<>();
+            }
+            for (String category : sourceCategories) {
+                categories.add(category);
+            }
+        }
+        return categories;
+    }
+
+    /**
+     * The tracks of the sources of a composite, one list per source, as each finishes loading.
+     */
+    public static class Batches implements Iterator<List<MediaMetadataCompat>> {
+        private final CompletionService<List<MediaMetadataCompat>> mCompletion;
+        private final List<Future<List<MediaMetadataCompat>>> mFutures = new ArrayList<>();
+        private final List<MusicProviderSource> mSources;
+        private final long mDeadline;
+        private final Set<String> mMusicIds = new HashSet<>();
+        private int mRemaining;
+
+        private Batches(List<MusicProviderSource> sources) {
+            mSources = sources;
+            mDeadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+            BlockingQueue<Future<List<MediaMetadataCompat>>> done = new LinkedBlockingQueue<>();
+            mCompletion = new ExecutorCompletionService<>(sExecutor, done);
+            for (final MusicProviderSource source : sources) {
+                mFutures.add(mCompletion.submit(new Callable<List<MediaMetadataCompat>>() {
+                    @Override
+                    public List<MediaMetadataCompat> call() {
+                        return load(source);
+                    }
+                }));
+            }
+            mRemaining = sources.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mRemaining > 0;
+        }
+
+        /**
+         * Wait for the next source to finish loading.
+         *
+         * @return its tracks, less those with the ID of a track of an earlier batch; empty if
+         * the source failed or the wait was interrupted, or if the sources still loading are
+         * past their deadline: they are then cancelled, and there are no more batches.
+         */
+        @Override
+        public List<MediaMetadataCompat> next() {
+            if (mRemaining == 0) {
+                throw new NoSuchElementException();
+            }
+            mRemaining--;
+            List<MediaMetadataCompat> tracks;
+            try {
+                Future<List<MediaMetadataCompat>> future = mCompletion.poll(
+                        Math.max(0, mDeadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    timeOut();
+                    return Collections.emptyList();
+                }
+                tracks = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                return Collections.emptyList();
+            } catch (ExecutionException e) {
+                LogHelper.e(TAG, e.getCause(), "Could not load music source");
+                return Collections.emptyList();
+            }
+            List<MediaMetadataCompat> batch = new ArrayList<>(tracks.size());
+            for (MediaMetadataCompat track : tracks) {
+                if (mMusicIds.add(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID))) {
+                    batch.add(track);
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * Stop the sources still loading; there are no more batches after this.
+         */
+        public void cancel() {
+            for (Future<List<MediaMetadataCompat>> future : mFutures) {
+                future.cancel(true);
+            }
+            mRemaining = 0;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void timeOut() {
+            for (int i = 0; i < mFutures.size(); i++) {
+                if (!mFutures.get(i).isDone()) {
+                    LogHelper.e(TAG, "Could not load ", mSources.get(i).getClass().getSimpleName(),
+                            ": still loading after ", LOAD_TIMEOUT_MS, " ms");
+                }
+            }
+            // Interrupts their loads; a blocked read gives up at its own timeout.
+            cancel();
+        }
+
+        private static List<MediaMetadataCompat> load(MusicProviderSource source) {
+            List<MediaMetadataCompat> tracks = new ArrayList<>();
+            Iterator<MediaMetadataCompat> it = null;
+            try {
+                it = source.iterator();
+                while (it.hasNext()) {
+                    if (Thread.interrupted()) {
+                        LogHelper.i(TAG, "Cancelled loading ", source.getClass().getSimpleName());
+                        return Collections.emptyList();
+                    }
+                    MediaMetadataCompat track = it.next();
+                    if (track != null) {
+                        tracks.add(track);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not load ", source.getClass().getSimpleName());
+                return Collections.emptyList();
+            } finally {
+                // Also when cancelled half way, so a remote source's connection is released.
+                MusicProvider.closeQuietly(it);
+            }
+            return tracks;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.FileHelper;
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+import com.bhagathsing.android.mytube.utils.WriteBehind;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The user's favorite tracks, kept on disk as one music ID per line so they survive the
+ * process.
+ *
+ * The IDs are the source of truth, so favorites of tracks missing from the catalog aren't
+ * lost. Lookups are answered from a bitset over the ordinals of the catalog's track store:
+ * checking a track is the catalog's own lookup of its ordinal and a bit test, with no set of
+ * strings involved. Snapshots edited from one another share their store, and a store only
+ * grows, so the bitset is carried over from one to the next and only the tracks added since
+ * are checked; it is rebuilt only for a new store, after a catalog load.
+ *
+ * Writes are write-behind like {@link MytubeSource}'s: a burst of toggles rewrites the file
+ * once, on a background thread. {@link #flush()} writes whatever is still pending.
+ */
+class FavoritesStore {
+
+    private static final String TAG = LogHelper.makeLogTag(FavoritesStore.class);
+
+
+    /**
+     * The favorites among the tracks of a store, by ordinal. Never changed once published.
+     */
+    private static class Membership {
+        final TrackStore store;
+        // The ordinals covered: those below it.
+        final int size;
+        final BitSet ordinals;
+
+        Membership(TrackStore store, int size, BitSet ordinals) {
+            this.store = store;
+            this.size = size;
+            this.ordinals = ordinals;
+        }
+    }
+
+    private final File mFile;
+    private final WriteBehind mWriteBehind = new WriteBehind(new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    });
+    // Held while writing the file, so an older list never lands after a newer one.
+    private final Object mWriteLock = new Object();
+
+    // Guarded by this store, in the order they were added.
+    private final Set<String> mMusicIds = new LinkedHashSet<>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    private volatile Membership mMembership;
+
+    FavoritesStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the favorites from disk, the first time only. Does disk I/O: call it off the main
+     * thread, before the favorites are needed.
+     */
+    synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), FileHelper.CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    mMusicIds.add(line);
+                }
+            }
+            LogHelper.d(TAG, "Loaded ", mMusicIds.size(), " favorites");
+        } catch (FileNotFoundException e) {
+            // No favorites yet.
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read favorites");
+        } finally {
+            FileHelper.closeQuietly(reader);
+        }
+        mMembership = null;
+    }
+
+    boolean contains(CatalogSnapshot catalog, String musicId) {
+        int ordinal = catalog.getOrdinal(musicId);
+        if (ordinal < 0) {
+            synchronized (this) {
+                return mMusicIds.contains(musicId);
+            }
+        }
+        return getMembership(catalog).ordinals.get(ordinal);
+    }
+
+    synchronized void set(CatalogSnapshot catalog, String musicId, boolean favorite) {
+        boolean changed = favorite ? mMusicIds.add(musicId) : mMusicIds.remove(musicId);
+        if (!changed) {
+            return;
+        }
+        Membership membership = mMembership;
+        int ordinal = catalog.getOrdinal(musicId);
+        // Ordinals not covered yet are checked against the IDs when they are.
+        if (membership != null && membership.store == catalog.getStore()
+                && ordinal >= 0 && ordinal < membership.size) {
+            BitSet ordinals = (BitSet) membership.ordinals.clone();
+            ordinals.set(ordinal, favorite);
+            mMembership = new Membership(membership.store, membership.size, ordinals);
+        }
+        setDirty();
+    }
+
+    // Called with the store locked.
+    private void setDirty() {
+        mDirty = true;
+        mWriteBehind.schedule();
+    }
+
+    /**
+     * Replace the 32-bit IDs tracks had before {@link TrackIdHelper#createTrackId} by their
+     * current ID, found by matching the old IDs of every track of the catalog. Old IDs with no
+     * match are kept, in place: their track may be in a source that failed to load, or in a
+     * search not run again yet, so they are tried again on the next load.
+     */
+    synchronized void migrateLegacyIds(CatalogSnapshot catalog) {
+        boolean hasLegacyIds = false;
+        for (String musicId : mMusicIds) {
+            if (!TrackIdHelper.isTrackId(musicId)) {
+                hasLegacyIds = true;
+                break;
+            }
+        }
+        if (!hasLegacyIds) {
+            return;
+        }
+        TrackStore store = catalog.getStore();
+        Map<String, String> currentIds = new HashMap<>();
+        for (int ordinal : catalog.getOrdinals()) {
+            String musicId = store.getMediaId(ordinal);
+            for (String legacyId : TrackIdHelper.createLegacyTrackIds(
+                    store.getGenre(ordinal), store.getSource(ordinal))) {
+                // The first track with an old ID keeps it, as the old lookup did.
+                if (!currentIds.containsKey(legacyId)) {
+                    currentIds.put(legacyId, musicId);
+                }
+            }
+        }
+        List<String> musicIds = new ArrayList<>(mMusicIds);
+        mMusicIds.clear();
+        int migrated = 0;
+        int pending = 0;
+        for (String musicId : musicIds) {
+            String currentId = TrackIdHelper.isTrackId(musicId) ? null : currentIds.get(musicId);
+            if (currentId != null) {
+                mMusicIds.add(currentId);
+                migrated++;
+            } else {
+                mMusicIds.add(musicId);
+                if (!TrackIdHelper.isTrackId(musicId)) {
+                    pending++;
+                }
+            }
+        }
+        if (migrated == 0) {
+            return;
+        }
+        LogHelper.i(TAG, "Migrated ", migrated, " favorites to 64-bit IDs, ", pending,
+                " not found in the catalog yet");
+        mMembership = null;
+        setDirty();
+    }
+
+    /**
+     * @return the favorite tracks of the catalog, oldest favorite first.
+     */
+    List<MediaMetadataCompat> getTracks(CatalogSnapshot catalog) {
+        List<String> musicIds;
+        synchronized (this) {
+            musicIds = new ArrayList<>(mMusicIds);
+        }
+        List<MediaMetadataCompat> tracks = new ArrayList<>(musicIds.size());
+        for (String musicId : musicIds) {
+            MediaMetadataCompat track = catalog.getMusic(musicId);
+            if (track != null) {
+                tracks.add(track);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Write pending changes to disk before returning.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            List<String> musicIds;
+            synchronized (this) {
+                // Never replace the file with the changes only.
+                load();
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                musicIds = new ArrayList<>(mMusicIds);
+            }
+            write(musicIds);
+        }
+    }
+
+    private void write(List<String> musicIds) {
+        try {
+            FileHelper.replaceLines(mFile, musicIds);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write favorites");
+        }
+    }
+
+    private Membership getMembership(CatalogSnapshot catalog) {
+        TrackStore store = catalog.getStore();
+        Membership membership = mMembership;
+        if (membership != null && membership.store == store && membership.size >= store.size()) {
+            return membership;
+        }
+        synchronized (this) {
+            membership = mMembership;
+            int size = store.size();
+            BitSet ordinals;
+            int from;
+            if (membership != null && membership.store == store) {
+                // Only the tracks added since need checking.
+                ordinals = (BitSet) membership.ordinals.clone();
+                from = membership.size;
+            } else {
+                ordinals = new BitSet(size);
+                from = 0;
+            }
+            for (int ordinal = from; ordinal < size; ordinal++) {
+                if (mMusicIds.contains(store.getMediaId(ordinal))) {
+                    ordinals.set(ordinal);
+                }
+            }
+            membership = new Membership(store, size, ordinals);
+            mMembership = membership;
+            return membership;
+        }
+    }
+}
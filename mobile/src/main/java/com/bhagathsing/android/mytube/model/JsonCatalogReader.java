@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull parser for catalogs of the form <code>{"music": [ {...}, ... ], "categories": [...]}</code>.
+ *
+ * Tracks are decoded one at a time as the iterator advances, so neither the whole document
+ * nor a JSON tree of it is ever held in memory, and the first track is available as soon as
+ * its bytes have arrived. Subclasses decode a single track object. The underlying reader is
+ * closed once the document has been consumed, or by {@link #close()}.
+ */
+public abstract class JsonCatalogReader implements Iterator<MediaMetadataCompat>, Closeable {
+
+    private static final String JSON_MUSIC = "music";
+    private static final String JSON_CATEGORIES = "categories";
+
+    private final JsonReader mReader;
+    private final List<String> mCategories = new ArrayList<>();
+    private boolean mStarted;
+    private boolean mInMusic;
+    private boolean mDone;
+    private MediaMetadataCompat mNext;
+
+    public JsonCatalogReader(Reader in) {
+        mReader = new JsonReader(in);
+    }
+
+    /**
+     * Decode the track object the reader is positioned on. Implementations must consume the
+     * whole object, including when they skip it.
+     *
+     * @return the track, or null to skip it.
+     */
+    protected abstract MediaMetadataCompat readTrack(JsonReader reader) throws IOException;
+
+    /**
+     * Categories found in the document so far. Complete once {@link #hasNext()} returned false.
+     */
+    public List<String> getCategories() {
+        return mCategories;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null && !mDone) {
+            try {
+                advance();
+            } catch (IOException | IllegalStateException e) {
+                close();
+                throw new RuntimeException("Could not read music catalog", e);
+            }
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public MediaMetadataCompat next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MediaMetadataCompat track = mNext;
+        mNext = null;
+        return track;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        mDone = true;
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void advance() throws IOException {
+        if (!mStarted) {
+            mStarted = true;
+            mReader.beginObject();
+        }
+        while (true) {
+            if (mInMusic) {
+                if (mReader.hasNext()) {
+                    if (mReader.peek() != JsonToken.BEGIN_OBJECT) {
+                        mReader.skipValue();
+                        continue;
+                    }
+                    MediaMetadataCompat track = readTrack(mReader);
+                    if (track != null) {
+                        mNext = track;
+                        return;
+                    }
+                    continue;
+                }
+                mReader.endArray();
+                mInMusic = false;
+            }
+            if (!mReader.hasNext()) {
+                mReader.endObject();
+                close();
+                return;
+            }
+            String name = mReader.nextName();
+            if (JSON_MUSIC.equals(name) && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                mReader.beginArray();
+                mInMusic = true;
+            } else if (JSON_CATEGORIES.equals(name) && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                mReader.beginArray();
+                while (mReader.hasNext()) {
+                    mCategories.add(mReader.nextString());
+                }
+                mReader.endArray();
+            } else {
+                mReader.skipValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed, in-memory form of the local musictube.json catalog: the user's categories and
+ * their tracks, read by {@link CatalogJournal} to be imported into the database. Journal
+ * records are applied to it with {@link #apply(JSONObject)}; the same records, built here,
+ * carry the changes {@link MytubeSource} writes to the database, see
+ * {@link SQLiteMusicSource#apply}.
+ *
+ * Tracks are kept in a {@link TrackStore}, as columns rather than a Bundle each; their
+ * {@link MediaMetadataCompat} is only built when they are read.
+ */
+public class LocalCatalog {
+
+    private static final String TAG = LogHelper.makeLogTag(LocalCatalog.class);
+
+    static final String JSON_MUSIC = "music";
+    static final String JSON_CATEGORIES = "categories";
+    static final String JSON_TITLE = "title";
+    static final String JSON_ALBUM = "album";
+    static final String JSON_GENRE = "genre";
+    static final String JSON_SOURCE = "source";
+    static final String JSON_DURATION = "duration";
+
+    static final String RECORD_OP = "op";
+    static final String RECORD_MUSIC = "music";
+    static final String RECORD_CATEGORY = "category";
+    static final String RECORD_SOURCE = "source";
+
+    static final String OP_INSERT_MUSIC = "insertMusic";
+    static final String OP_INSERT_CATEGORY = "insertCategory";
+    static final String OP_DELETE_MUSIC = "deleteMusic";
+    static final String OP_DELETE_CATEGORY = "deleteCategory";
+
+    // Rebuild the store once it has this many times more tracks than the catalog.
+    private static final int STORE_SLACK = 2;
+    private static final int MIN_STORE_SIZE = 256;
+
+    private final Set<String> mCategories = new LinkedHashSet<>();
+    private TrackStore mStore = new TrackStore();
+    // Ordinals of the tracks in the store keyed by genre and source, the same pair
+    // insertMusic checks for duplicates.
+    private final Map<String, Integer> mMusic = new LinkedHashMap<>();
+
+    public Set<String> getCategories() {
+        return Collections.unmodifiableSet(mCategories);
+    }
+
+    /**
+     * @return the tracks, as a read-only view: the metadata of a track is built each time
+     * it is read.
+     */
+    public Collection<MediaMetadataCompat> getMusic() {
+        return new AbstractCollection<MediaMetadataCompat>() {
+            @Override
+            public Iterator<MediaMetadataCompat> iterator() {
+                return new TrackIterator(mStore, mMusic.values().iterator());
+            }
+
+            @Override
+            public int size() {
+                return mMusic.size();
+            }
+        };
+    }
+
+    void addCategory(String category) {
+        mCategories.add(category);
+    }
+
+    void addTrack(MediaMetadataCompat track) {
+        String key = trackKey(track.getString(MediaMetadataCompat.METADATA_KEY_GENRE),
+                track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE));
+        if (!mMusic.containsKey(key)) {
+            mMusic.put(key, mStore.add(track));
+        }
+    }
+
+    public void apply(JSONObject record) throws JSONException {
+        String op = record.getString(RECORD_OP);
+        if (OP_INSERT_MUSIC.equals(op)) {
+            addTrack(trackFromJSON(record.getJSONObject(RECORD_MUSIC)));
+        } else if (OP_INSERT_CATEGORY.equals(op)) {
+            mCategories.add(record.getString(RECORD_CATEGORY));
+        } else if (OP_DELETE_MUSIC.equals(op)) {
+            String source = record.getString(RECORD_SOURCE);
+            Iterator<Integer> it = mMusic.values().iterator();
+            while (it.hasNext()) {
+                if (source.equals(mStore.getSource(it.next()))) {
+                    it.remove();
+                }
+            }
+            compactIfNeeded();
+        } else if (OP_DELETE_CATEGORY.equals(op)) {
+            String category = record.getString(RECORD_CATEGORY);
+            mCategories.remove(category);
+            Iterator<Integer> it = mMusic.values().iterator();
+            while (it.hasNext()) {
+                if (category.equals(mStore.getGenre(it.next()))) {
+                    it.remove();
+                }
+            }
+            compactIfNeeded();
+        } else {
+            LogHelper.w(TAG, "Unknown catalog operation: ", op);
+        }
+    }
+
+    /**
+     * Copy the tracks to a new store once the current one is mostly deleted tracks.
+     */
+    private void compactIfNeeded() {
+        if (mStore.size() <= MIN_STORE_SIZE || mStore.size() <= STORE_SLACK * mMusic.size()) {
+            return;
+        }
+        TrackStore store = new TrackStore();
+        for (Map.Entry<String, Integer> entry : mMusic.entrySet()) {
+            entry.setValue(store.copy(mStore, entry.getValue()));
+        }
+        mStore = store;
+    }
+
+    public static JSONObject insertMusicRecord(MediaMetadataCompat track) throws JSONException {
+        JSONObject music = new JSONObject()
+                .put(JSON_TITLE, track.getString(MediaMetadataCompat.METADATA_KEY_TITLE))
+                .put(JSON_ALBUM, track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM))
+                .put(JSON_GENRE, track.getString(MediaMetadataCompat.METADATA_KEY_GENRE))
+                .put(JSON_SOURCE, track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE))
+                .put(JSON_DURATION, track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION) / 1000);
+        return new JSONObject().put(RECORD_OP, OP_INSERT_MUSIC).put(RECORD_MUSIC, music);
+    }
+
+    public static JSONObject insertCategoryRecord(String category) throws JSONException {
+        return new JSONObject().put(RECORD_OP, OP_INSERT_CATEGORY).put(RECORD_CATEGORY, category);
+    }
+
+    public static JSONObject deleteMusicRecord(String source) throws JSONException {
+        return new JSONObject().put(RECORD_OP, OP_DELETE_MUSIC).put(RECORD_SOURCE, source);
+    }
+
+    public static JSONObject deleteCategoryRecord(String category) throws JSONException {
+        return new JSONObject().put(RECORD_OP, OP_DELETE_CATEGORY).put(RECORD_CATEGORY, category);
+    }
+
+    /**
+     * Decode a track object of musictube.json, consuming it from the reader.
+     *
+     * @return the track, or null if it lacks a source.
+     */
+    static MediaMetadataCompat readTrack(JsonReader reader) throws IOException {
+        String title = "";
+        String album = "";
+        String genre = "";
+        String source = null;
+        long duration = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_TITLE.equals(name)) {
+                title = reader.nextString();
+            } else if (JSON_ALBUM.equals(name)) {
+                album = reader.nextString();
+            } else if (JSON_GENRE.equals(name)) {
+                genre = reader.nextString();
+            } else if (JSON_SOURCE.equals(name)) {
+                source = reader.nextString();
+            } else if (JSON_DURATION.equals(name)) {
+                duration = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (source == null) {
+            return null;
+        }
+        return buildTrack(title, album, genre, source, duration * 1000);
+    }
+
+    static MediaMetadataCompat trackFromJSON(JSONObject json) throws JSONException {
+        return buildTrack(json.getString(JSON_TITLE), json.getString(JSON_ALBUM),
+                json.getString(JSON_GENRE), json.getString(JSON_SOURCE),
+                json.getLong(JSON_DURATION) * 1000);
+    }
+
+    /**
+     * Build the metadata of a local catalog track.
+     *
+     * @param duration in milliseconds.
+     */
+    public static MediaMetadataCompat buildTrack(String title, String album, String genre,
+                                                 String source, long duration) {
+        String id = TrackIdHelper.createTrackId(genre, source);
+
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
+                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, source)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .build();
+    }
+
+    private static String trackKey(String genre, String source) {
+        return genre + '\n' + source;
+    }
+
+    private static class TrackIterator implements Iterator<MediaMetadataCompat> {
+        private final TrackStore mStore;
+        private final Iterator<Integer> mOrdinals;
+
+        TrackIterator(TrackStore store, Iterator<Integer> ordinals) {
+            mStore = store;
+            mOrdinals = ordinals;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mOrdinals.hasNext();
+        }
+
+        @Override
+        public MediaMetadataCompat next() {
+            return mStore.get(mOrdinals.next());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
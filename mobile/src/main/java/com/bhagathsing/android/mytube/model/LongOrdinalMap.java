@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from 64-bit track keys to ordinals in a {@link TrackStore}, on two primitive
+ * arrays: no boxing and no entry objects. Open addressing with linear probing, at most half
+ * full, and backward shift deletion so no tombstones pile up.
+ *
+ * Nothing is ever overwritten silently: {@link #putIfAbsent} hands back the ordinal already
+ * mapped to the key, for the caller to tell a duplicate track from a key collision. A map
+ * can instead keep several ordinals per key, through {@link #add}, {@link #getAll} and
+ * {@link #remove(long, int)}: entries with the same key sit in the same probe run.
+ */
+class LongOrdinalMap {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    // Ordinal + 1 in each used slot, 0 in empty ones.
+    private int[] mOrdinals;
+    private int mSize;
+
+    LongOrdinalMap() {
+        this(MIN_CAPACITY);
+    }
+
+    private LongOrdinalMap(int capacity) {
+        mKeys = new long[capacity];
+        mOrdinals = new int[capacity];
+    }
+
+    LongOrdinalMap copy() {
+        LongOrdinalMap copy = new LongOrdinalMap(0);
+        copy.mKeys = mKeys.clone();
+        copy.mOrdinals = mOrdinals.clone();
+        copy.mSize = mSize;
+        return copy;
+    }
+
+    /**
+     * @return the same keys mapped to newOrdinals[ordinal], in the same slots.
+     */
+    LongOrdinalMap withOrdinals(int[] newOrdinals) {
+        LongOrdinalMap copy = copy();
+        for (int slot = 0; slot < copy.mOrdinals.length; slot++) {
+            if (copy.mOrdinals[slot] != 0) {
+                copy.mOrdinals[slot] = newOrdinals[copy.mOrdinals[slot] - 1] + 1;
+            }
+        }
+        return copy;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the ordinal of the key, or -1.
+     */
+    int get(long key) {
+        int slot = find(key);
+        return slot < 0 ? -1 : mOrdinals[slot] - 1;
+    }
+
+    /**
+     * Map the key to the ordinal, unless it is already mapped.
+     *
+     * @return -1 if the ordinal was added, else the ordinal the key is mapped to.
+     */
+    int putIfAbsent(long key, int ordinal) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return mOrdinals[slot] - 1;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        insert(key, ordinal);
+        mSize++;
+        return -1;
+    }
+
+    /**
+     * Map the key to one more ordinal, keeping the ones it already has.
+     */
+    void add(long key, int ordinal) {
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        insert(key, ordinal);
+        mSize++;
+    }
+
+    /**
+     * @return every ordinal of the key, in no particular order.
+     */
+    int[] getAll(long key) {
+        int count = 0;
+        int[] ordinals = new int[1];
+        int mask = mKeys.length - 1;
+        for (int slot = homeSlot(key, mKeys.length); mOrdinals[slot] != 0;
+             slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) {
+                if (count == ordinals.length) {
+                    ordinals = Arrays.copyOf(ordinals, count * 2);
+                }
+                ordinals[count++] = mOrdinals[slot] - 1;
+            }
+        }
+        return count == ordinals.length ? ordinals : Arrays.copyOf(ordinals, count);
+    }
+
+    /**
+     * Map a key that is already in the map to another ordinal.
+     */
+    void replace(long key, int ordinal) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mOrdinals[slot] = ordinal + 1;
+        }
+    }
+
+    boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Remove one ordinal of the key, leaving its other ones.
+     */
+    boolean remove(long key, int ordinal) {
+        int mask = mKeys.length - 1;
+        for (int slot = homeSlot(key, mKeys.length); mOrdinals[slot] != 0;
+             slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key && mOrdinals[slot] == ordinal + 1) {
+                removeSlot(slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeSlot(int slot) {
+        int mask = mKeys.length - 1;
+        mOrdinals[slot] = 0;
+        mSize--;
+        // Move back the entries probed after the slot, so they can still be found.
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (mOrdinals[next] == 0) {
+                return;
+            }
+            int home = homeSlot(mKeys[next], mKeys.length);
+            // The entry stays if its home slot is cyclically in (slot, next].
+            boolean stays = slot <= next
+                    ? slot < home && home <= next
+                    : slot < home || home <= next;
+            if (!stays) {
+                mKeys[slot] = mKeys[next];
+                mOrdinals[slot] = mOrdinals[next];
+                mOrdinals[next] = 0;
+                slot = next;
+            }
+        }
+    }
+
+    /**
+     * Copy every ordinal of the map, in no particular order.
+     *
+     * @return the offset after the last ordinal copied.
+     */
+    int copyOrdinals(int[] dest, int offset) {
+        for (int entry : mOrdinals) {
+            if (entry != 0) {
+                dest[offset++] = entry - 1;
+            }
+        }
+        return offset;
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        for (int slot = homeSlot(key, mKeys.length); ; slot = (slot + 1) & mask) {
+            if (mOrdinals[slot] == 0) {
+                return -1;
+            }
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long key, int ordinal) {
+        int mask = mKeys.length - 1;
+        int slot = homeSlot(key, mKeys.length);
+        while (mOrdinals[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mOrdinals[slot] = ordinal + 1;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] ordinals = mOrdinals;
+        mKeys = new long[keys.length * 2];
+        mOrdinals = new int[ordinals.length * 2];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (ordinals[slot] != 0) {
+                insert(keys[slot], ordinals[slot] - 1);
+            }
+        }
+    }
+
+    // Keys are already well mixed hashes: their high bits pick the slot, so the low bits can
+    // pick a shard independently.
+    private static int homeSlot(long key, int capacity) {
+        return (int) (key >>> 32) & (capacity - 1);
+    }
+}
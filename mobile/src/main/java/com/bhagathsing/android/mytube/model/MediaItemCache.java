@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.MediaIDHelper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Descriptions and media items of tracks with a hierarchy-aware media ID, as shown when
+ * browsing a genre or put in a queue, kept per hierarchy and track.
+ *
+ * An entry is tied to the sorted list of its track's genre it was made from. Genres that
+ * didn't change keep the same list from one catalog to the next, so entries stay valid
+ * across changes elsewhere, like the recently played genre growing with every play: browsing
+ * the same genre again creates nothing, not even the tracks' metadata. A track getting its
+ * album art keeps its list, so it is dropped with {@link #invalidate}. Only the hierarchies
+ * used last are kept, so searches don't pile up.
+ */
+class MediaItemCache {
+
+    private static final int MAX_HIERARCHIES = 32;
+
+    private static class Entry {
+        // The list of the track's genre the entry was made from.
+        final SortedTrackList version;
+        final MediaDescriptionCompat description;
+        MediaBrowserCompat.MediaItem playableItem;
+
+        Entry(SortedTrackList version, MediaDescriptionCompat description) {
+            this.version = version;
+            this.description = description;
+        }
+    }
+
+    private static class Hierarchy {
+        final Map<String, Entry> entries = new HashMap<>();
+        // The list last browsed in this hierarchy, if it is a genre.
+        SortedTrackList browsed;
+    }
+
+    // Hierarchy (the media ID of the categories) -> its entries, least recently used first.
+    private final Map<String, Hierarchy> mHierarchies =
+            new LinkedHashMap<String, Hierarchy>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Hierarchy> eldest) {
+                    return size() > MAX_HIERARCHIES;
+                }
+            };
+
+    public synchronized MediaDescriptionCompat getDescription(CatalogSnapshot catalog,
+            MediaMetadataCompat track, String... categories) {
+        Map<String, Entry> entries = getHierarchy(categories).entries;
+        String musicId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        SortedTrackList version = catalog.getGenreList(
+                track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+        Entry entry = entries.get(musicId);
+        if (entry == null || entry.version != version) {
+            entry = new Entry(version, createDescription(track, categories));
+            entries.put(musicId, entry);
+        }
+        return entry.description;
+    }
+
+    /**
+     * @return the playable item of the track at the index of the list; its metadata is only
+     * built if the item isn't cached yet.
+     */
+    public synchronized MediaBrowserCompat.MediaItem getPlayableItem(SortedTrackList tracks,
+            int index, String... categories) {
+        Hierarchy hierarchy = getHierarchy(categories);
+        if (hierarchy.browsed != tracks) {
+            // The genre changed: none of its entries are valid any more.
+            hierarchy.entries.clear();
+            hierarchy.browsed = tracks;
+        }
+        String musicId = tracks.getStore().getMediaId(tracks.getOrdinal(index));
+        Entry entry = hierarchy.entries.get(musicId);
+        if (entry == null || entry.version != tracks) {
+            entry = new Entry(tracks, createDescription(tracks.getTracks().get(index),
+                    categories));
+            hierarchy.entries.put(musicId, entry);
+        }
+        if (entry.playableItem == null) {
+            entry.playableItem = new MediaBrowserCompat.MediaItem(entry.description,
+                    MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+        }
+        return entry.playableItem;
+    }
+
+    /**
+     * Drop the entries of a track whose metadata changed without its genre changing.
+     */
+    public synchronized void invalidate(String musicId) {
+        for (Hierarchy hierarchy : mHierarchies.values()) {
+            hierarchy.entries.remove(musicId);
+        }
+    }
+
+    private Hierarchy getHierarchy(String... categories) {
+        String mediaId = MediaIDHelper.createMediaID(null, categories);
+        Hierarchy hierarchy = mHierarchies.get(mediaId);
+        if (hierarchy == null) {
+            hierarchy = new Hierarchy();
+            mHierarchies.put(mediaId, hierarchy);
+        }
+        return hierarchy;
+    }
+
+    /**
+     * The description of the track with a hierarchy-aware media ID: built from the track's
+     * own (cached) description, without copying the metadata.
+     */
+    private static MediaDescriptionCompat createDescription(MediaMetadataCompat track,
+                                                            String... categories) {
+        MediaDescriptionCompat description = track.getDescription();
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(MediaIDHelper.createMediaID(description.getMediaId(), categories))
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setDescription(description.getDescription())
+                .setIconBitmap(description.getIconBitmap())
+                .setIconUri(description.getIconUri())
+                .setMediaUri(description.getMediaUri())
+                .setExtras(description.getExtras())
+                .build();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import java.io.File;
+
+/**
+ * SQLite schema of the local music catalog.
+ *
+ * A track is unique per (genre, source), which is also the index used for duplicate checks
+ * and for listing a genre. Deletes by source and lookups by media ID have indexes of their
+ * own. When the database is first created, the existing musictube.json catalog (and its
+ * journal) is imported into it, once: the JSON files are never written again.
+ */
+class MusicCatalogDatabase extends SQLiteOpenHelper {
+
+    private static final String TAG = LogHelper.makeLogTag(MusicCatalogDatabase.class);
+
+    private static final String DATABASE_NAME = "musictube.db";
+    // 2: 64-bit media IDs, see TrackIdHelper.
+    private static final int DATABASE_VERSION = 2;
+
+    static final String TABLE_MUSIC = "music";
+    static final String TABLE_CATEGORIES = "categories";
+
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_MEDIA_ID = "media_id";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_ALBUM = "album";
+    static final String COLUMN_GENRE = "genre";
+    static final String COLUMN_SOURCE = "source";
+    static final String COLUMN_DURATION = "duration";
+    static final String COLUMN_NAME = "name";
+
+    private final File mJsonFile;
+    private final File mJournalFile;
+
+    MusicCatalogDatabase(Context context, File jsonFile, File journalFile) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mJsonFile = jsonFile;
+        mJournalFile = journalFile;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MUSIC + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_MEDIA_ID + " TEXT NOT NULL, "
+                + COLUMN_TITLE + " TEXT, "
+                + COLUMN_ALBUM + " TEXT, "
+                + COLUMN_GENRE + " TEXT NOT NULL, "
+                + COLUMN_SOURCE + " TEXT NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL DEFAULT 0, "
+                // Also serves as the genre index, genre being its leading column.
+                + "UNIQUE (" + COLUMN_GENRE + ", " + COLUMN_SOURCE + "))");
+        db.execSQL("CREATE INDEX music_source ON " + TABLE_MUSIC + " (" + COLUMN_SOURCE + ")");
+        db.execSQL("CREATE INDEX music_media_id ON " + TABLE_MUSIC
+                + " (" + COLUMN_MEDIA_ID + ")");
+        db.execSQL("CREATE TABLE " + TABLE_CATEGORIES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_NAME + " TEXT NOT NULL UNIQUE)");
+        importJsonCatalog(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            migrateMediaIds(db);
+        }
+    }
+
+    /**
+     * Recompute the media ID of every track, from the 32-bit hash of version 1 to the
+     * current one. Runs inside the upgrade transaction.
+     */
+    private static void migrateMediaIds(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE_MUSIC, new String[] {COLUMN_ID, COLUMN_GENRE, COLUMN_SOURCE},
+                null, null, null, null, null);
+        int count = 0;
+        try {
+            ContentValues values = new ContentValues();
+            String[] args = new String[1];
+            while (cursor.moveToNext()) {
+                values.put(COLUMN_MEDIA_ID,
+                        TrackIdHelper.createTrackId(cursor.getString(1), cursor.getString(2)));
+                args[0] = String.valueOf(cursor.getLong(0));
+                db.update(TABLE_MUSIC, values, COLUMN_ID + " = ?", args);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        LogHelper.i(TAG, "Migrated the media ID of ", count, " tracks");
+    }
+
+    /**
+     * Copy musictube.json, with its journal replayed, into a freshly created database.
+     * The JSON files are left in place.
+     */
+    private void importJsonCatalog(SQLiteDatabase db) {
+        if (!mJsonFile.exists() && !mJournalFile.exists()) {
+            return;
+        }
+        LocalCatalog catalog = new CatalogJournal(mJsonFile, mJournalFile).load();
+        for (String category : catalog.getCategories()) {
+            db.insertWithOnConflict(TABLE_CATEGORIES, null, categoryValues(category),
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        for (MediaMetadataCompat track : catalog.getMusic()) {
+            db.insertWithOnConflict(TABLE_MUSIC, null, musicValues(track),
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        LogHelper.i(TAG, "Imported ", catalog.getMusic().size(), " tracks from ", mJsonFile);
+    }
+
+    static ContentValues categoryValues(String category) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, category);
+        return values;
+    }
+
+    static ContentValues musicValues(MediaMetadataCompat track) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_MEDIA_ID, track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+        values.put(COLUMN_TITLE, track.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        values.put(COLUMN_ALBUM, track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
+        values.put(COLUMN_GENRE, track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+        values.put(COLUMN_SOURCE, track.getString(
+                MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE));
+        values.put(COLUMN_DURATION, track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        return values;
+    }
+}
@@ -25,21 +25,30 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 import com.bhagathsing.android.mytube.R;
+import com.bhagathsing.android.mytube.utils.FileHelper;
 import com.bhagathsing.android.mytube.utils.LogHelper;
 import com.bhagathsing.android.mytube.utils.MediaIDHelper;
 
+import java.io.Closeable;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
 import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
 import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_ROOT;
 import static com.bhagathsing.android.mytube.utils.MediaIDHelper.createMediaID;
 
@@ -53,11 +62,26 @@ public class MusicProvider {
 
     private static MusicProviderSource mSource;
 
-    // Categorized caches for music track data:
-    public static ConcurrentMap<String, List<MediaMetadataCompat>> mMusicListByGenre;
-    public static ConcurrentMap<String, MutableMediaMetadata> mMusicListById;
-
-    private final Set<String> mFavoriteTracks;
+    // The current catalog: tracks by ID and by genre. Readers just take the snapshot, writers
+    // build the next one under the class lock and publish it here. A catalog load builds its
+    // snapshot without the lock, and only takes it to replay the edits made meanwhile on top
+    // and publish the result.
+    private static final AtomicReference<CatalogSnapshot> sCatalog =
+            new AtomicReference<>(CatalogSnapshot.EMPTY);
+    // The edits published since the running catalog load started, or null if none is running.
+    // Guarded by the class lock.
+    private static List<CatalogEdit> sRebaseEdits;
+    private static volatile SearchIndex sSearchIndex = new SearchIndex();
+    // Rebuilt in the background after the catalog is published; read as is by suggestions.
+    private static volatile Suggestions sSuggestions = new Suggestions(-1, PrefixIndex.EMPTY);
+    private static final ExecutorService sSuggestionExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sSuggestionsScheduled = new AtomicBoolean();
+    private static final MediaItemCache sMediaItems = new MediaItemCache();
+    private static final FavoritesStore sFavorites = new FavoritesStore(
+            new File(MytubeSource.jsonFile.getParentFile(), "favorites.txt"));
+
+    private final RecentlyPlayed mRecentlyPlayed = new RecentlyPlayed();
+    private final Random mRandom = new Random();
 
     enum State {
         NON_INITIALIZED, INITIALIZING, INITIALIZED
@@ -65,21 +89,73 @@ public class MusicProvider {
 
     private static volatile State mCurrentState = State.NON_INITIALIZED;
 
+    private static final Object sLoadLock = new Object();
+    // Held for the whole of a catalog load, so loads never overlap. Writers never take it.
+    private static final Object sRetrieveLock = new Object();
+    // The catalog load running now, if any. Guarded by sLoadLock.
+    private static CatalogLoad sPendingLoad;
+
     public interface Callback {
         void onMusicCatalogReady(boolean success);
     }
 
+    /**
+     * Told of tracks added to a genre after the catalog was first published, for instance by
+     * a search loading more results or a remote catalog arriving after the local one.
+     */
+    public interface OnGenreChangedListener {
+        void onGenreChanged(String genre);
+
+        /**
+         * Genres may have been added, by a catalog part published after the first one.
+         */
+        void onGenreListChanged();
+    }
+
+    private static volatile OnGenreChangedListener sGenreListener;
+
+    /**
+     * Whether tracks on their way to the catalog were given up on, asked by
+     * {@link #addTracks(List, Cancellation)} with the catalog locked.
+     */
+    public interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * The suggestion index with the epoch of the catalog it was built from, published together.
+     */
+    private static class Suggestions {
+        final int epoch;
+        final PrefixIndex index;
+
+        Suggestions(int epoch, PrefixIndex index) {
+            this.epoch = epoch;
+            this.index = index;
+        }
+    }
+
+    /**
+     * A change to the catalog, kept while a catalog load runs to apply it again on top of the
+     * catalog the load publishes.
+     */
+    private interface CatalogEdit {
+        /**
+         * @return true if the catalog changed.
+         */
+        boolean apply(CatalogSnapshot.Editor editor, SearchIndex searchIndex);
+    }
+
+    /**
+     * A provider of the local catalog and the remote one together: local tracks are
+     * browsable as soon as they are read, remote ones are merged in when they arrive.
+     */
     public MusicProvider() {
-        this(new MytubeSource());
+        this(new CompositeSource(new MytubeSource(), new RemoteJSONSource()));
     }
     public MusicProvider(MusicProviderSource source) {
         mCurrentState = State.NON_INITIALIZED;
         mSource = source;
-        if(mMusicListByGenre == null)
-            mMusicListByGenre = new ConcurrentHashMap<>();
-        if(mMusicListById == null)
-            mMusicListById = new ConcurrentHashMap<>();
-        mFavoriteTracks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     /**
@@ -91,7 +167,7 @@ public class MusicProvider {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.keySet();
+        return sCatalog.get().getGenres();
     }
 
     public Iterable<String> getCategories() {
@@ -102,18 +178,54 @@ public class MusicProvider {
     }
 
     /**
-     * Get an iterator over a shuffled collection of all songs
+     * Draw distinct tracks at random, in random order, with a partial Fisher-Yates shuffle
+     * that only remembers the positions it swapped: time and memory grow with the number of
+     * tracks drawn, not with the size of the catalog.
+     *
+     * @param genre the genre to draw from, or null for the whole catalog.
+     * @param count the number of tracks wanted; fewer are returned if there aren't enough.
+     * @param avoidRecent smart shuffle: recently played tracks only come after all others.
      */
-    public Iterable<MediaMetadataCompat> getShuffledMusic() {
-        if (mCurrentState != State.INITIALIZED) {
+    public List<MediaMetadataCompat> getRandomMusic(String genre, int count, boolean avoidRecent) {
+        if (mCurrentState != State.INITIALIZED || count <= 0) {
             return Collections.emptyList();
         }
-        List<MediaMetadataCompat> shuffled = new ArrayList<>(mMusicListById.size());
-        for (MutableMediaMetadata mutableMetadata: mMusicListById.values()) {
-            shuffled.add(mutableMetadata.metadata);
+        CatalogSnapshot catalog = sCatalog.get();
+        List<MediaMetadataCompat> tracks = genre == null
+                ? catalog.getMusicList() : catalog.getMusicsByGenre(genre);
+        int size = tracks.size();
+        List<MediaMetadataCompat> result = new ArrayList<>(Math.min(count, size));
+        List<MediaMetadataCompat> recent = new ArrayList<>();
+        // Position -> index of the track moved there by earlier swaps.
+        Map<Integer, Integer> swapped = new HashMap<>();
+        for (int i = 0; i < size && result.size() < count; i++) {
+            int j = i + mRandom.nextInt(size - i);
+            Integer atJ = swapped.get(j);
+            Integer atI = swapped.remove(i);
+            if (j != i) {
+                swapped.put(j, atI == null ? i : atI);
+            }
+            MediaMetadataCompat track = tracks.get(atJ == null ? j : atJ);
+            if (avoidRecent && mRecentlyPlayed.contains(
+                    track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID))) {
+                if (recent.size() < count) {
+                    recent.add(track);
+                }
+                continue;
+            }
+            result.add(track);
+        }
+        for (int i = 0; i < recent.size() && result.size() < count; i++) {
+            result.add(recent.get(i));
         }
-        Collections.shuffle(shuffled);
-        return shuffled;
+        return result;
+    }
+
+    /**
+     * Remember that a track was played, for {@link #getRandomMusic} to avoid it for a while.
+     */
+    public void setPlayed(String musicId) {
+        mRecentlyPlayed.add(musicId);
     }
 
     /**
@@ -121,15 +233,15 @@ public class MusicProvider {
      *
      */
     public List<MediaMetadataCompat> getMusicsByGenre(String genre) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByGenre.containsKey(genre)) {
+        if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.get(genre);
+        return sCatalog.get().getMusicsByGenre(genre);
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with title containing
-     * the given query.
+     * Search for music tracks with a title containing, for every word of the query, a word
+     * starting with it.
      *
      */
     public List<MediaMetadataCompat> searchMusicBySongTitle(String query) {
@@ -137,8 +249,8 @@ public class MusicProvider {
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with album containing
-     * the given query.
+     * Search for music tracks with an album containing, for every word of the query, a word
+     * starting with it.
      *
      */
     public List<MediaMetadataCompat> searchMusicByAlbum(String query) {
@@ -146,8 +258,8 @@ public class MusicProvider {
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with artist containing
-     * the given query.
+     * Search for music tracks with an artist containing, for every word of the query, a word
+     * starting with it.
      *
      */
     public List<MediaMetadataCompat> searchMusicByArtist(String query) {
@@ -155,27 +267,101 @@ public class MusicProvider {
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with a genre containing
-     * the given query.
+     * Search for music tracks with a genre containing, for every word of the query, a word
+     * starting with it.
      *
      */
     public List<MediaMetadataCompat> searchMusicByGenre(String query) {
         return searchMusic(MediaMetadataCompat.METADATA_KEY_GENRE, query);
     }
 
+    /**
+     * Search the title, artist, album and genre of every track for all the words of the
+     * query, matching word prefixes.
+     *
+     * @return the matching tracks, those matching on title first, then artist, album, genre.
+     */
+    public List<MediaMetadataCompat> searchMusic(String query) {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        return getTracks(sSearchIndex.search(query, SearchIndex.ALL_FIELDS));
+    }
+
+    /**
+     * Typo-tolerant search on title, artist and album, for queries {@link #searchMusic}
+     * finds nothing for, like misheard voice queries.
+     *
+     * @return at most limit tracks, most similar first.
+     */
+    public List<MediaMetadataCompat> fuzzySearchMusic(String query, int limit) {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        return getTracks(sSearchIndex.fuzzySearch(query, SearchIndex.FUZZY_FIELDS, limit));
+    }
+
     private List<MediaMetadataCompat> searchMusic(String metadataField, String query) {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        ArrayList<MediaMetadataCompat> result = new ArrayList<>();
-        query = query.toLowerCase(Locale.US);
-        for (MutableMediaMetadata track : mMusicListById.values()) {
-            if (track.metadata.getString(metadataField).toLowerCase(Locale.US)
-                .contains(query)) {
-                result.add(track.metadata);
+        return getTracks(sSearchIndex.search(query, SearchIndex.fieldOf(metadataField)));
+    }
+
+    // The tracks of the IDs found by the search index, skipping those removed meanwhile.
+    private static List<MediaMetadataCompat> getTracks(List<String> musicIds) {
+        CatalogSnapshot catalog = sCatalog.get();
+        List<MediaMetadataCompat> tracks = new ArrayList<>(musicIds.size());
+        for (String musicId : musicIds) {
+            MediaMetadataCompat track = catalog.getMusic(musicId);
+            if (track != null) {
+                tracks.add(track);
             }
         }
-        return result;
+        return tracks;
+    }
+
+    /**
+     * Index of the titles, albums and categories of the catalog for search suggestions. Built
+     * in the background whenever a catalog is published, so a keystroke only ever looks it
+     * up; right after a change it may still be the index of the previous catalog.
+     */
+    public static PrefixIndex getSuggestionIndex() {
+        return sSuggestions.index;
+    }
+
+    /**
+     * Rebuild the suggestion index for the current catalog, unless a rebuild is already
+     * waiting to run: a burst of changes is indexed once.
+     */
+    private static void scheduleSuggestionIndex() {
+        if (!sSuggestionsScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        sSuggestionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Cleared first: a catalog published from now on gets a rebuild of its own.
+                sSuggestionsScheduled.set(false);
+                CatalogSnapshot catalog = sCatalog.get();
+                if (sSuggestions.epoch == catalog.getEpoch()) {
+                    return;
+                }
+                List<String> texts = new ArrayList<>();
+                TrackStore store = catalog.getStore();
+                for (int ordinal : catalog.getOrdinals()) {
+                    texts.add(store.getTitle(ordinal));
+                    texts.add(store.getAlbum(ordinal));
+                }
+                Iterable<String> categories = mSource == null ? null : mSource.categories();
+                if (categories != null) {
+                    for (String category : categories) {
+                        texts.add(category);
+                    }
+                }
+                sSuggestions = new Suggestions(catalog.getEpoch(), PrefixIndex.of(texts));
+            }
+        });
     }
 
     //kangtle
@@ -183,16 +369,146 @@ public class MusicProvider {
         if (mCurrentState != State.INITIALIZED) {
             return null;
         }
-        if(mMusicListByGenre.get(category) == null){
-            return null;
+        return sCatalog.get().findMusic(category, source);
+    }
+
+    /**
+     * The current catalog. It never changes: read it as many times as needed, it will stay
+     * consistent; changes only show up in later snapshots.
+     */
+    public static CatalogSnapshot getCatalog() {
+        return sCatalog.get();
+    }
+
+    /**
+     * Add a track at its place in its genre, unless the genre already has a track with the
+     * same source.
+     *
+     * @return true if the track was added.
+     */
+    public static synchronized boolean addTrack(MediaMetadataCompat metadata) {
+        return applyEdit(addTrackEdit(metadata));
+    }
+
+    /**
+     * Add tracks like {@link #addTrack}, publishing a single catalog for all of them, and tell
+     * the {@link OnGenreChangedListener} of each genre that got new tracks.
+     *
+     * @return the number of tracks added.
+     */
+    public static int addTracks(List<MediaMetadataCompat> tracks) {
+        return addTracks(tracks, null);
+    }
+
+    /**
+     * Add tracks like {@link #addTracks(List)}, unless they were cancelled. The cancellation
+     * is checked with the catalog locked: tracks cancelled before a later edit, like the
+     * removal of their genre, never land after it.
+     *
+     * @return the number of tracks added.
+     */
+    public static int addTracks(List<MediaMetadataCompat> tracks, Cancellation cancellation) {
+        Set<String> genres = new LinkedHashSet<>();
+        int added = 0;
+        synchronized (MusicProvider.class) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                return 0;
+            }
+            CatalogSnapshot.Editor editor = sCatalog.get().edit();
+            for (MediaMetadataCompat track : tracks) {
+                CatalogEdit edit = addTrackEdit(track);
+                if (edit.apply(editor, sSearchIndex)) {
+                    added++;
+                    genres.add(track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+                    logEdit(edit);
+                }
+            }
+            if (genres.isEmpty()) {
+                return 0;
+            }
+            publish(editor.build());
         }
-        MediaMetadataCompat result = null;
-        for (MediaMetadataCompat track : mMusicListByGenre.get(category)) {
-            if (track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE).equals(source)) {
-                result = track;
+        OnGenreChangedListener listener = sGenreListener;
+        if (listener != null) {
+            for (String genre : genres) {
+                listener.onGenreChanged(genre);
             }
         }
-        return result;
+        return added;
+    }
+
+    public static void setOnGenreChangedListener(OnGenreChangedListener listener) {
+        sGenreListener = listener;
+    }
+
+    /**
+     * Remove every track with the given source, from all genres: the local catalog
+     * deletes music by source.
+     */
+    public static synchronized void removeTrack(final String source) {
+        applyEdit(new CatalogEdit() {
+            @Override
+            public boolean apply(CatalogSnapshot.Editor editor, SearchIndex searchIndex) {
+                int[] removed = editor.removeSource(source);
+                for (int ordinal : removed) {
+                    searchIndex.remove(editor.getStore(), ordinal);
+                }
+                return removed.length > 0;
+            }
+        });
+    }
+
+    /**
+     * Remove a genre and all of its tracks.
+     */
+    public static synchronized void removeGenre(final String genre) {
+        applyEdit(new CatalogEdit() {
+            @Override
+            public boolean apply(CatalogSnapshot.Editor editor, SearchIndex searchIndex) {
+                int[] removed = editor.removeGenre(genre);
+                for (int ordinal : removed) {
+                    searchIndex.remove(editor.getStore(), ordinal);
+                }
+                return removed.length > 0;
+            }
+        });
+    }
+
+    private static CatalogEdit addTrackEdit(final MediaMetadataCompat metadata) {
+        return new CatalogEdit() {
+            @Override
+            public boolean apply(CatalogSnapshot.Editor editor, SearchIndex searchIndex) {
+                if (!editor.addTrack(metadata)) {
+                    return false;
+                }
+                searchIndex.add(metadata);
+                return true;
+            }
+        };
+    }
+
+    // Called with the class locked.
+    private static boolean applyEdit(CatalogEdit edit) {
+        CatalogSnapshot.Editor editor = sCatalog.get().edit();
+        if (!edit.apply(editor, sSearchIndex)) {
+            return false;
+        }
+        publish(editor.build());
+        logEdit(edit);
+        return true;
+    }
+
+    // Called with the class locked.
+    private static void publish(CatalogSnapshot catalog) {
+        sCatalog.set(catalog);
+        scheduleSuggestionIndex();
+    }
+
+    // Called with the class locked.
+    private static void logEdit(CatalogEdit edit) {
+        if (sRebaseEdits != null) {
+            sRebaseEdits.add(edit);
+        }
     }
 
     /**
@@ -201,12 +517,16 @@ public class MusicProvider {
      * @param musicId The unique, non-hierarchical music ID.
      */
     public MediaMetadataCompat getMusic(String musicId) {
-        return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId).metadata : null;
+        return sCatalog.get().getMusic(musicId);
     }
 
-    public synchronized void updateMusicArt(String musicId, Bitmap albumArt, Bitmap icon) {
+    public void updateMusicArt(final String musicId, Bitmap albumArt, Bitmap icon) {
         MediaMetadataCompat metadata = getMusic(musicId);
-        metadata = new MediaMetadataCompat.Builder(metadata)
+        if (metadata == null) {
+            // Removed while its art was being fetched.
+            return;
+        }
+        final MediaMetadataCompat withArt = new MediaMetadataCompat.Builder(metadata)
 
                 // set high resolution bitmap in METADATA_KEY_ALBUM_ART. This is used, for
                 // bhagathsing, on the lockscreen background when the media session is active.
@@ -219,21 +539,26 @@ public class MusicProvider {
 
                 .build();
 
-        MutableMediaMetadata mutableMetadata = mMusicListById.get(musicId);
-        if (mutableMetadata == null) {
-            throw new IllegalStateException("Unexpected error: Inconsistent data structures in " +
-                    "MusicProvider");
+        boolean replaced;
+        synchronized (MusicProvider.class) {
+            replaced = applyEdit(new CatalogEdit() {
+                @Override
+                public boolean apply(CatalogSnapshot.Editor editor, SearchIndex searchIndex) {
+                    return editor.replaceTrack(musicId, withArt);
+                }
+            });
+        }
+        if (replaced) {
+            // Its genre is unchanged, so its cached descriptions would keep the old art.
+            sMediaItems.invalidate(musicId);
         }
-
-        mutableMetadata.metadata = metadata;
     }
 
+    /**
+     * Star or unstar a track. Saved to disk shortly after, see {@link #flushFavorites()}.
+     */
     public void setFavorite(String musicId, boolean favorite) {
-        if (favorite) {
-            mFavoriteTracks.add(musicId);
-        } else {
-            mFavoriteTracks.remove(musicId);
-        }
+        sFavorites.set(sCatalog.get(), musicId, favorite);
     }
 
     public boolean isInitialized() {
@@ -241,81 +566,207 @@ public class MusicProvider {
     }
 
     public boolean isFavorite(String musicId) {
-        return mFavoriteTracks.contains(musicId);
+        return sFavorites.contains(sCatalog.get(), musicId);
+    }
+
+    /**
+     * @return the favorite tracks in the catalog, in the order they were starred.
+     */
+    public List<MediaMetadataCompat> getFavoriteMusic() {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        return sFavorites.getTracks(sCatalog.get());
+    }
+
+    /**
+     * Write favorite changes still waiting to be saved. Called when the app may be killed.
+     */
+    public static void flushFavorites() {
+        sFavorites.flush();
     }
 
     /**
      * Get the list of music tracks from a server and caches the track information
      * for future reference, keying tracks by musicId and grouping by genre.
+     *
+     * Only one load runs at a time: callers asking while one is running are attached to it
+     * and notified with everybody else when it's over, or as soon as the first part of the
+     * catalog is there for a source loading in parts.
+     *
+     * @return the load, to cancel it or detach the callback.
      */
-    public void retrieveMediaAsync(final Callback callback) {
+    public CatalogLoad retrieveMediaAsync(final Callback callback) {
         LogHelper.d(TAG, "retrieveMediaAsync called");
-        if (mCurrentState == State.INITIALIZED) {
-            if (callback != null) {
-                // Nothing to do, execute callback immediately
-                callback.onMusicCatalogReady(true);
+        final CatalogLoad load;
+        boolean start = false;
+        synchronized (sLoadLock) {
+            if (mCurrentState == State.INITIALIZED) {
+                // Nothing to do, the callback is executed immediately
+                load = CatalogLoad.finished(true);
+            } else {
+                if (sPendingLoad == null || sPendingLoad.isCancelled()) {
+                    sPendingLoad = new CatalogLoad();
+                    start = true;
+                }
+                load = sPendingLoad;
             }
-            return;
+        }
+        if (callback != null) {
+            load.addCallback(callback);
+        }
+        if (!start) {
+            return load;
         }
 
         // Asynchronously load the music catalog in a separate thread
         new AsyncTask<Void, Void, State>() {
             @Override
             protected State doInBackground(Void... params) {
-                retrieveMedia(false);
+                retrieveMedia(false, load, new Runnable() {
+                    @Override
+                    public void run() {
+                        publishProgress();
+                    }
+                });
                 return mCurrentState;
             }
 
+            @Override
+            protected void onProgressUpdate(Void... values) {
+                // Part of the catalog is browsable, the rest is merged in as it arrives.
+                load.finish(true);
+            }
+
             @Override
             protected void onPostExecute(State current) {
-                if (callback != null) {
-                    callback.onMusicCatalogReady(current == State.INITIALIZED);
+                synchronized (sLoadLock) {
+                    if (sPendingLoad == load) {
+                        sPendingLoad = null;
+                    }
                 }
+                load.finish(current == State.INITIALIZED);
             }
         }.execute();
+        return load;
     }
 
-    public static synchronized void buildListsByGenre() {
-        ConcurrentMap<String, List<MediaMetadataCompat>> newMusicListByGenre = new ConcurrentHashMap<>();
-
-        //Kangtle alpha
-        ArrayList<MutableMediaMetadata> values = new ArrayList(mMusicListById.values());
-        Collections.sort(values, new Comparator<MutableMediaMetadata>() {
-            @Override
-            public int compare(MutableMediaMetadata o1, MutableMediaMetadata o2) {
-                String title1 = o1.metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-                String title2 = o2.metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-                return title1.compareToIgnoreCase(title2);
-            }
-        });
+    public static void retrieveMedia(boolean clear) {
+        retrieveMedia(clear, null, null);
+    }
 
-        for (MutableMediaMetadata m : values) {
-            String genre = m.metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
-            List<MediaMetadataCompat> list = newMusicListByGenre.get(genre);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByGenre.put(genre, list);
-            }
-            list.add(m.metadata);
+    /**
+     * @param onPublished run each time part of the catalog is published, for sources loading
+     * in parts like {@link CompositeSource}: the catalog is usable from the first time on.
+     */
+    private static void retrieveMedia(boolean clear, CatalogLoad load, Runnable onPublished) {
+        synchronized (sRetrieveLock) {
+            retrieveMediaLocked(clear, load, onPublished);
         }
-        mMusicListByGenre = newMusicListByGenre;
     }
 
-    public static synchronized void retrieveMedia(boolean clear) {
+    // Sources are read and the catalog built without the class lock: tracks added or removed
+    // meanwhile, from the UI thread for instance, never wait for the disk or the network.
+    private static void retrieveMediaLocked(boolean clear, CatalogLoad load,
+                                            Runnable onPublished) {
+        CompositeSource.Batches batches = null;
+        Iterator<MediaMetadataCompat> tracks = null;
         try {
 //            if (mCurrentState == State.NON_INITIALIZED) { //Kangtle
                 mCurrentState = State.INITIALIZING;
-                if (clear) mMusicListById.clear();
-                Iterator<MediaMetadataCompat> tracks = mSource.iterator();
-                while (tracks.hasNext()) {
-                    MediaMetadataCompat item = tracks.next();
-                    String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-                    mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
+                sFavorites.load();
+                CatalogSnapshot current;
+                synchronized (MusicProvider.class) {
+                    current = sCatalog.get();
+                    sRebaseEdits = new ArrayList<>();
+                }
+                TrackStore store = new TrackStore();
+                // The tracks kept from the current catalog, copied once for all the parts.
+                int[] kept = new int[0];
+                if (!clear) {
+                    TrackStore currentStore = current.getStore();
+                    kept = current.getOrdinals();
+                    for (int i = 0; i < kept.length; i++) {
+                        kept[i] = store.copy(currentStore, kept[i]);
+                    }
                 }
-                buildListsByGenre();
-                mCurrentState = State.INITIALIZED;
+                Iterator<? extends Iterable<MediaMetadataCompat>> parts;
+                if (mSource instanceof CompositeSource) {
+                    batches = ((CompositeSource) mSource).batches();
+                    parts = batches;
+                } else {
+                    final Iterator<MediaMetadataCompat> sourceTracks = mSource.iterator();
+                    tracks = sourceTracks;
+                    parts = Collections.singletonList(new Iterable<MediaMetadataCompat>() {
+                        @Override
+                        public Iterator<MediaMetadataCompat> iterator() {
+                            return sourceTracks;
+                        }
+                    }).iterator();
+                }
+                int[] ordinals = new int[Math.max(16, current.size())];
+                int count = 0;
+                boolean published = false;
+                while (parts.hasNext()) {
+                    Set<String> partGenres = new LinkedHashSet<>();
+                    for (MediaMetadataCompat track : parts.next()) {
+                        if (load != null && load.isCancelled()) {
+                            LogHelper.i(TAG, "Catalog load cancelled");
+                            return;
+                        }
+                        if (count == ordinals.length) {
+                            ordinals = Arrays.copyOf(ordinals, count * 2);
+                        }
+                        ordinals[count] = store.add(track);
+                        partGenres.add(store.getGenre(ordinals[count]));
+                        count++;
+                    }
+                    // Tracks from the sources first: they win over the current ones with their ID.
+                    int[] all = Arrays.copyOf(ordinals, count + kept.length);
+                    System.arraycopy(kept, 0, all, count, kept.length);
+                    //Kangtle alpha
+                    CatalogSnapshot catalog = CatalogSnapshot.of(0, store, all, all.length);
+                    SearchIndex searchIndex = new SearchIndex();
+                    // Straight from the columns: no track's metadata is built for the index.
+                    for (int ordinal : catalog.getOrdinals()) {
+                        searchIndex.add(store, ordinal);
+                    }
+                    synchronized (MusicProvider.class) {
+                        // Edits made since the load started go on top, as if made after it.
+                        CatalogSnapshot.Editor editor =
+                                catalog.withEpoch(sCatalog.get().getEpoch() + 1).edit();
+                        for (CatalogEdit edit : sRebaseEdits) {
+                            edit.apply(editor, searchIndex);
+                        }
+                        sSearchIndex = searchIndex;
+                        publish(editor.build());
+                        mCurrentState = State.INITIALIZED;
+                    }
+                    if (onPublished != null) {
+                        onPublished.run();
+                    }
+                    // Clients already browsing the first part are told about the later ones.
+                    OnGenreChangedListener listener = sGenreListener;
+                    if (published && listener != null && !partGenres.isEmpty()) {
+                        listener.onGenreListChanged();
+                        for (String genre : partGenres) {
+                            listener.onGenreChanged(genre);
+                        }
+                    }
+                    published = true;
+                }
+                sFavorites.migrateLegacyIds(sCatalog.get());
 //            }
         } finally {
+            synchronized (MusicProvider.class) {
+                sRebaseEdits = null;
+            }
+            if (batches != null) {
+                batches.cancel();
+            }
+            // A remote source streams its tracks: don't leave its connection open when the
+            // load stops early.
+            closeQuietly(tracks);
             if (mCurrentState != State.INITIALIZED) {
                 // Something bad happened, so we reset state to NON_INITIALIZED to allow
                 // retries (eg if the network connection is temporary unavailable)
@@ -324,25 +775,91 @@ public class MusicProvider {
         }
     }
 
+    static void closeQuietly(Iterator<?> tracks) {
+        if (tracks instanceof Closeable) {
+            FileHelper.closeQuietly((Closeable) tracks);
+        }
+    }
+
     public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources) {
+        return getChildren(mediaId, resources, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get one page of the children of a node, as asked with
+     * {@link MediaBrowserCompat#EXTRA_PAGE} and {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}:
+     * only the items of that page are created.
+     *
+     * @param page negative for the first page.
+     * @param pageSize less than 1 for all the children in a single page.
+     * @return the children from page * pageSize, at most pageSize of them; an empty list
+     * past the end.
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources,
+                                                          int page, int pageSize) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
         if (!MediaIDHelper.isBrowseable(mediaId)) {
             return mediaItems;
         }
+        if (page < 0) {
+            page = 0;
+        }
+        if (pageSize < 1) {
+            pageSize = Integer.MAX_VALUE;
+        }
 
         if (MEDIA_ID_ROOT.equals(mediaId)) {
-            mediaItems.add(createBrowsableMediaItemForRoot(resources));
+            if (page == 0) {
+                mediaItems.add(createBrowsableMediaItemForRoot(resources));
+                mediaItems.add(createBrowsableMediaItemForFavorites(resources));
+            }
+
+        } else if (MEDIA_ID_MUSICS_BY_FAVORITE.equals(mediaId)) {
+            String favorites = resources.getString(R.string.browse_favorites);
+            for (MediaMetadataCompat track : getPage(getFavoriteMusic(), page, pageSize)) {
+                mediaItems.add(new MediaBrowserCompat.MediaItem(
+                        getDescription(track, MEDIA_ID_MUSICS_BY_FAVORITE, favorites),
+                        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            }
 
         } else if (MEDIA_ID_MUSICS_BY_GENRE.equals(mediaId)) {
+            List<String> genres = new ArrayList<>();
             for (String genre : getCategories()) { //getCategories
+                genres.add(genre);
+            }
+            for (String genre : getPage(genres, page, pageSize)) {
                 mediaItems.add(createBrowsableMediaItemForGenre(genre, resources));
             }
 
         } else if (mediaId.startsWith(MEDIA_ID_MUSICS_BY_GENRE)) {
+            // The item has a hierarchy-aware mediaID. We will need to know the media hierarchy
+            // when we get a onPlayFromMusicID call, so we can create the proper queue based
+            // on where the music was selected from (by artist, by genre, random, etc)
             String genre = MediaIDHelper.getHierarchy(mediaId)[1];
-            for (MediaMetadataCompat metadata : getMusicsByGenre(genre)) {
-                mediaItems.add(createMediaItem(metadata));
+            CatalogSnapshot catalog = sCatalog.get();
+            SortedTrackList tracks = catalog.getGenreList(genre);
+            if (mCurrentState != State.INITIALIZED || tracks == null) {
+                return mediaItems;
+            }
+            long from = (long) page * pageSize;
+            long to = Math.min(from + pageSize, tracks.size());
+            for (long i = from; i < to; i++) {
+                mediaItems.add(sMediaItems.getPlayableItem(tracks, (int) i,
+                        MEDIA_ID_MUSICS_BY_GENRE, genre));
+            }
+
+        } else if (mediaId.startsWith(MEDIA_ID_MUSICS_BY_SEARCH)) {
+            // Local results of a query, as the search screen shows them while typing.
+            String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+            if (hierarchy.length < 2) {
+                return mediaItems;
+            }
+            String query = hierarchy[1];
+            for (MediaMetadataCompat track : getPage(searchMusic(query), page, pageSize)) {
+                mediaItems.add(new MediaBrowserCompat.MediaItem(
+                        getDescription(track, MEDIA_ID_MUSICS_BY_SEARCH, query),
+                        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
             }
 
         } else {
@@ -351,6 +868,14 @@ public class MusicProvider {
         return mediaItems;
     }
 
+    private static <T> List<T> getPage(List<T> list, int page, int pageSize) {
+        long from = (long) page * pageSize;
+        if (from >= list.size()) {
+            return Collections.emptyList();
+        }
+        return list.subList((int) from, (int) Math.min(from + pageSize, list.size()));
+    }
+
     private MediaBrowserCompat.MediaItem createBrowsableMediaItemForRoot(Resources resources) {
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
                 .setMediaId(MEDIA_ID_MUSICS_BY_GENRE)
@@ -363,6 +888,19 @@ public class MusicProvider {
                 MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
+    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForFavorites(
+            Resources resources) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(MEDIA_ID_MUSICS_BY_FAVORITE)
+                .setTitle(resources.getString(R.string.browse_favorites))
+                .setSubtitle(resources.getString(R.string.browse_favorites_subtitle))
+                .setIconUri(Uri.parse("android.resource://" +
+                        "com.bhagathsing.android.mytube/drawable/ic_star_on"))
+                .build();
+        return new MediaBrowserCompat.MediaItem(description,
+                MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
     private MediaBrowserCompat.MediaItem createBrowsableMediaItemForGenre(String genre,
                                                                     Resources resources) {
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
@@ -375,20 +913,13 @@ public class MusicProvider {
                 MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
-    private MediaBrowserCompat.MediaItem createMediaItem(MediaMetadataCompat metadata) {
-        // Since mediaMetadata fields are immutable, we need to create a copy, so we
-        // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
-        // when we get a onPlayFromMusicID call, so we can create the proper queue based
-        // on where the music was selected from (by artist, by genre, random, etc)
-        String genre = metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
-        String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                metadata.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_GENRE, genre);
-        MediaMetadataCompat copy = new MediaMetadataCompat.Builder(metadata)
-                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                .build();
-        return new MediaBrowserCompat.MediaItem(copy.getDescription(),
-                MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
-
+    /**
+     * The description of a track with a hierarchy-aware media ID, for queues. Descriptions
+     * are kept until the track's genre changes, so building the same queue again is cheap.
+     */
+    public MediaDescriptionCompat getDescription(MediaMetadataCompat track,
+                                                 String... categories) {
+        return sMediaItems.getDescription(sCatalog.get(), track, categories);
     }
 
 }
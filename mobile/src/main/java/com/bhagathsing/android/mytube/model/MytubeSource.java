@@ -21,56 +21,57 @@ import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.os.Environment;
 import android.support.v4.media.MediaMetadataCompat;
-import android.util.Log;
 
 import com.bhagathsing.android.mytube.MyApplication;
 import com.bhagathsing.android.mytube.ui.MusicPlayerActivity;
 import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.WriteBehind;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
- * Utility class to get a list of MusicTrack's based on a server-side JSON
- * configuration.
+ * The user's local music catalog, kept in SQLite, see {@link SQLiteMusicSource}.
+ *
+ * Changes reach {@link MusicProvider} right away and the database shortly after: they are
+ * queued as catalog records and written behind on their own thread, a burst of them in one
+ * transaction, so callers never wait for the disk. {@link #flush()} writes whatever is still
+ * queued; loads flush first, so they see every change made before them.
  */
 public class MytubeSource implements MusicProviderSource {
 
-    private static final String TAG = LogHelper.makeLogTag(RemoteJSONSource.class);
+    private static final String TAG = LogHelper.makeLogTag(MytubeSource.class);
 
     protected static final String CATALOG_URL =
             "http://storage.googleapis.com/automotive-media/music.json";
 
-    private static final String JSON_MUSIC = "music";
-    private static final String JSON_CATEGORIES = "categories";
-    private static final String JSON_TITLE = "title";
-    private static final String JSON_ALBUM = "album";
-    private static final String JSON_ARTIST = "artist";
-    private static final String JSON_GENRE = "genre";
-    private static final String JSON_SOURCE = "source";
-    private static final String JSON_IMAGE = "image";
-    private static final String JSON_TRACK_NUMBER = "trackNumber";
-    private static final String JSON_TOTAL_TRACK_COUNT = "totalTrackCount";
-    private static final String JSON_DURATION = "duration";
+    // The catalog of earlier versions, imported into the database when it is created.
     public static File jsonFile = Environment.getExternalStoragePublicDirectory(MusicPlayerActivity.APP_NAME+"/musictube.json");
+    public static File journalFile = new File(jsonFile.getParentFile(), "musictube.journal");
+
+    // Guarded by itself rather than by the write lock, so queueing never waits for a write.
+    private static final List<JSONObject> sPendingRecords = new ArrayList<>();
+    // Held while writing, so batches reach the database in the order they were queued.
+    private static final Object sWriteLock = new Object();
+    private static final WriteBehind sWriteBehind = new WriteBehind(new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    });
+    // Guarded by the write lock.
+    private static SQLiteMusicSource sStore;
+    // Read from the database once, then kept up to date by the changes; null until then.
+    private static Set<String> sCategories;
 
     static {
         jsonFile.getParentFile().mkdirs();
@@ -78,32 +79,9 @@ public class MytubeSource implements MusicProviderSource {
 
     @Override
     public Iterator<MediaMetadataCompat> iterator() {
-        ArrayList<MediaMetadataCompat> tracks = new ArrayList<>();
-        try {
-            JSONObject jsonObj = readJSON();
-            if (jsonObj != null) {
-                JSONArray jsonTracks = jsonObj.getJSONArray(JSON_MUSIC);
-
-                if (jsonTracks != null) {
-                    for (int j = 0; j < jsonTracks.length(); j++) {
-                        tracks.add(buildFromJSON(jsonTracks.getJSONObject(j)));
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            LogHelper.e(TAG, e, "Could not retrieve music list");
-        }
-
-        Collections.sort(tracks, new Comparator<MediaMetadataCompat>() {
-            @Override
-            public int compare(MediaMetadataCompat o1, MediaMetadataCompat o2) {
-                String title1 = o1.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-                String title2 = o2.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-                return title1.compareToIgnoreCase(title2);
-            }
-        });
-
-        return tracks.iterator();
+        flush();
+        // MusicProvider sorts each genre itself.
+        return getStore().iterator();
     }
 
     @Override
@@ -111,258 +89,111 @@ public class MytubeSource implements MusicProviderSource {
         return getCategories();
     }
 
-    private MediaMetadataCompat buildFromJSON(JSONObject json) throws JSONException {
-        String title = json.getString(JSON_TITLE);
-        String album = json.getString(JSON_ALBUM);
-        String genre = json.getString(JSON_GENRE);
-        String source = json.getString(JSON_SOURCE);
-        int duration = json.getInt(JSON_DURATION) * 1000; // ms
-
-        String id = String.valueOf((genre+source).hashCode());
-
-        return new MediaMetadataCompat.Builder()
-                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
-                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, source)
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
-                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
-                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                .build();
+    private static SQLiteMusicSource getStore() {
+        // Not the class lock: flush() gets the store while holding the write lock.
+        synchronized (sWriteLock) {
+            if (sStore == null) {
+                sStore = new SQLiteMusicSource(MyApplication.getAppContext());
+            }
+            return sStore;
+        }
     }
 
     /**
-     * Download a JSON file from a server, parse the content and return the JSON
-     * object.
-     *
-     * @return result JSONObject containing the parsed representation.
+     * Queue a catalog record to be written to the database shortly, on the write thread.
      */
-    private static JSONObject readJSON(){
-        String jsonStr = readFromFile();
-        try {
-            return new JSONObject(jsonStr);
-        } catch (JSONException e) {
-            LogHelper.e(TAG, e, "Could not retrieve music list");
-            return null;
-        } catch (Exception e) {
-            LogHelper.e(TAG, "Failed to parse the json for media list", e);
-            return null;
+    private static void apply(JSONObject record) {
+        synchronized (sPendingRecords) {
+            sPendingRecords.add(record);
         }
+        sWriteBehind.schedule();
     }
 
-    private static void writeJSON(JSONObject jsonObject) throws JSONException {
-        String jsonStr = jsonObject.toString();
-        writeToFile(jsonStr);
-    }
-
-    private static void writeToFile(String data) {
-        try {
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new FileOutputStream(jsonFile));
-            outputStreamWriter.write(data);
-            outputStreamWriter.close();
-        }
-        catch (IOException e) {
-            Log.e("Exception", "File write failed: " + e.toString());
-        }
-    }
-
-    private static String readFromFile() {
-
-        String ret = "";
-
-        try {
-            InputStream inputStream = new FileInputStream(jsonFile);
-            if ( inputStream != null ) {
-                InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-                BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-                String receiveString = "";
-                StringBuilder stringBuilder = new StringBuilder();
-
-                while ( (receiveString = bufferedReader.readLine()) != null ) {
-                    stringBuilder.append(receiveString);
+    /**
+     * Write catalog changes that are still queued to disk. Called when the app may be killed.
+     */
+    public static void flush() {
+        synchronized (sWriteLock) {
+            List<JSONObject> records;
+            synchronized (sPendingRecords) {
+                if (sPendingRecords.isEmpty()) {
+                    return;
                 }
-
-                inputStream.close();
-                ret = stringBuilder.toString();
+                records = new ArrayList<>(sPendingRecords);
+                sPendingRecords.clear();
             }
+            getStore().apply(records);
         }
-        catch (FileNotFoundException e) {
-            Log.e("login activity", "File not found: " + e.toString());
-        } catch (IOException e) {
-            Log.e("login activity", "Can not read file: " + e.toString());
-        }
-
-        return ret;
     }
 
-    public static ArrayList<String> getCategories(){
-        ArrayList<String> categories = new ArrayList<>();
-        try {
-            JSONObject jsonObj = readJSON();
-            if (jsonObj != null) {
-                if(jsonObj.has(JSON_CATEGORIES)){
-                    JSONArray jsonCategories = jsonObj.getJSONArray(JSON_CATEGORIES);
-                    for (int i=0;i<jsonCategories.length();i++){
-                        categories.add(jsonCategories.getString(i));
-                    }
-                }
+    public static synchronized ArrayList<String> getCategories(){
+        if (sCategories == null) {
+            // Queued categories are in the database once flushed.
+            flush();
+            sCategories = new LinkedHashSet<>();
+            for (String category : getStore().categories()) {
+                sCategories.add(category);
             }
-        } catch (JSONException e) {
-            LogHelper.e(TAG, e, "Could not retrieve music list");
         }
-
-        return categories;
+        return new ArrayList<>(sCategories);
     }
 
     public static void insertCategory(String category){
-        JSONObject jsonObject = null;
         try {
-            jsonObject = readJSON();
-            if (jsonObject == null) {
-                jsonObject = new JSONObject();
-            }
-            JSONArray categoriesArray = null;
-            if(jsonObject.has(JSON_CATEGORIES)){
-                categoriesArray = jsonObject.getJSONArray(JSON_CATEGORIES);
-            }else{
-                categoriesArray = new JSONArray();
-            }
-            if(!categoriesArray.toString().contains(category)){
-                categoriesArray.put(category);
-                jsonObject.put(JSON_CATEGORIES, categoriesArray);
-                writeJSON(jsonObject);
+            JSONObject record = LocalCatalog.insertCategoryRecord(category);
+            // Queued with the class locked, so the categories read by getCategories() have it
+            // either way.
+            synchronized (MytubeSource.class) {
+                // Without reading the categories: the database ignores one it already has.
+                if (sCategories != null && !sCategories.add(category)) {
+                    return;
+                }
+                apply(record);
             }
         } catch (JSONException e) {
-            e.printStackTrace();
+            LogHelper.e(TAG, e, "Could not insert category ", category);
         }
     }
 
     public static void insertMusic(String category, MediaMetadataCompat mediaMetadata){
-        String musicId = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
         String source = mediaMetadata.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
-        String album = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM);
-        Long duration = mediaMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
-        String title = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-        if(MusicProvider.searchMusicInCategory(category, source) == null){
-            JSONObject jsonMediaObject = new JSONObject();
+        // Same metadata (and media ID) the track will have when the catalog is reloaded.
+        MediaMetadataCompat newMetadata = LocalCatalog.buildTrack(
+                mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE),
+                mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM),
+                category, source,
+                mediaMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        if (MusicProvider.addTrack(newMetadata)) {
             try {
-                jsonMediaObject.put(JSON_TITLE, title);
-                jsonMediaObject.put(JSON_ALBUM, album);
-                jsonMediaObject.put(JSON_GENRE, category);
-                jsonMediaObject.put(JSON_SOURCE, source);
-                jsonMediaObject.put(JSON_DURATION, duration/1000);
+                apply(LocalCatalog.insertMusicRecord(newMetadata));
             } catch (JSONException e) {
-                e.printStackTrace();
+                LogHelper.e(TAG, e, "Could not insert music ", source);
             }
-
-            JSONObject jsonObject = null;
-            try {
-                jsonObject = readJSON();
-                if (jsonObject == null) {
-                    jsonObject = new JSONObject();
-                }
-                JSONArray musicArray = null;
-                if(jsonObject.has(JSON_MUSIC)){
-                    musicArray = jsonObject.getJSONArray(JSON_MUSIC);
-                }else{
-                    musicArray = new JSONArray();
-                }
-                musicArray.put(jsonMediaObject);
-                jsonObject.put(JSON_MUSIC, musicArray);
-                writeJSON(jsonObject);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-
-            MediaMetadataCompat newMetadata = new MediaMetadataCompat.Builder()
-                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, musicId)
-                    .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, source)
-                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
-                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, category)
-                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                    .build();
-            MusicProvider.mMusicListById.put(musicId, new MutableMediaMetadata(musicId, newMetadata));
-            List<MediaMetadataCompat> list = MusicProvider.mMusicListByGenre.get(category);
-            if (list == null) {
-                list = new ArrayList<>();
-                MusicProvider.mMusicListByGenre.put(category, list);
-            }
-            list.add(0, newMetadata);
         }
     }
 
     public static void deleteCategory(String category){
-        JSONObject jsonObject = null;
+        MusicProvider.removeGenre(category);
         try {
-            jsonObject = readJSON();
-            if (jsonObject != null) {
-                JSONArray categoryArray = null;
-                if(jsonObject.has(JSON_CATEGORIES)){
-                    categoryArray = jsonObject.getJSONArray(JSON_CATEGORIES);
-                    JSONArray newCategoryList = new JSONArray();
-                    int len = categoryArray.length();
-                    for (int i=0;i<len;i++)
-                    {
-                        String temp = categoryArray.getString(i);
-                        //Excluding the item at position
-                        if (!temp.equals(category))
-                        {
-                            newCategoryList.put(temp);
-                        }
-                    }
-
-                    //delete musics by category
-                    JSONArray musicArray = null;
-                    if(jsonObject.has(JSON_MUSIC)) {
-                        musicArray = jsonObject.getJSONArray(JSON_MUSIC);
-                        JSONArray newMusicList = new JSONArray();
-                        int lenMusic = musicArray.length();
-                        for (int i = 0; i < lenMusic; i++) {
-                            JSONObject temp = musicArray.getJSONObject(i);
-                            String tempGENRE = temp.getString(JSON_GENRE);
-                            //Excluding the item at position
-                            if (!tempGENRE.equals(category)) {
-                                newMusicList.put(musicArray.get(i));
-                            }
-                        }
-                        jsonObject.put(JSON_MUSIC, newMusicList);
-                    }
-
-                    jsonObject.put(JSON_CATEGORIES, newCategoryList);
-                    writeJSON(jsonObject);
+            JSONObject record = LocalCatalog.deleteCategoryRecord(category);
+            synchronized (MytubeSource.class) {
+                if (sCategories != null) {
+                    sCategories.remove(category);
                 }
+                apply(record);
             }
         } catch (JSONException e) {
-            e.printStackTrace();
+            LogHelper.e(TAG, e, "Could not delete category ", category);
         }
     }
 
     public static void deleteMusic(MediaMetadataCompat mediaMetadata){
-        JSONObject jsonObject = null;
+        String source = mediaMetadata.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+        MusicProvider.removeTrack(source);
         try {
-            jsonObject = readJSON();
-            if (jsonObject != null) {
-                JSONArray musicArray = null;
-                if(jsonObject.has(JSON_MUSIC)) {
-                    musicArray = jsonObject.getJSONArray(JSON_MUSIC);
-                    JSONArray newMusicList = new JSONArray();
-                    int len = musicArray.length();
-                    for (int i = 0; i < len; i++) {
-                        JSONObject temp = musicArray.getJSONObject(i);
-                        String tempSource = temp.getString(JSON_SOURCE);
-                        String deletedSource = mediaMetadata.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
-                        //Excluding the item at position
-                        if (!tempSource.equals(deletedSource)) {
-                            newMusicList.put(musicArray.get(i));
-                        }
-                    }
-
-                    jsonObject.put(JSON_MUSIC, newMusicList);
-                    writeJSON(jsonObject);
-                }
-            }
+            apply(LocalCatalog.deleteMusicRecord(source));
         } catch (JSONException e) {
-            e.printStackTrace();
+            LogHelper.e(TAG, e, "Could not delete music ", source);
         }
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable sorted-array index answering "which of these texts have a word starting with
+ * this prefix", for type-ahead suggestions.
+ *
+ * Every text is indexed once per word, under the lowercased rest of the text from that word
+ * on. A lookup is a binary search followed by a walk over the matching run, so it costs
+ * O(log n + k) string comparisons regardless of how many texts are indexed.
+ */
+public class PrefixIndex {
+
+    public static final PrefixIndex EMPTY = new PrefixIndex(new String[0], new String[0]);
+
+    private final String[] mKeys;
+    private final String[] mTexts;
+
+    private PrefixIndex(String[] keys, String[] texts) {
+        mKeys = keys;
+        mTexts = texts;
+    }
+
+    public static PrefixIndex of(Iterable<String> texts) {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+        for (String text : texts) {
+            if (text == null || !seen.add(text)) {
+                continue;
+            }
+            String lower = text.toLowerCase(Locale.US);
+            boolean inWord = false;
+            for (int i = 0; i < lower.length(); i++) {
+                boolean wordChar = Character.isLetterOrDigit(lower.charAt(i));
+                if (wordChar && !inWord) {
+                    entries.add(new Entry(lower.substring(i), text));
+                }
+                inWord = wordChar;
+            }
+        }
+        Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+        Arrays.sort(sorted);
+        String[] keys = new String[sorted.length];
+        String[] values = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            keys[i] = sorted[i].key;
+            values[i] = sorted[i].text;
+        }
+        return new PrefixIndex(keys, values);
+    }
+
+    /**
+     * @return up to limit distinct texts with a word starting with the prefix, in the
+     * order of the matching words.
+     */
+    public List<String> lookup(String prefix, int limit) {
+        String key = prefix.trim().toLowerCase(Locale.US);
+        if (key.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Set<String> result = new LinkedHashSet<>();
+        // First key not smaller than the prefix: the start of the run of keys extending it.
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int index = low; index < mKeys.length && result.size() < limit
+                && mKeys[index].startsWith(key); index++) {
+            result.add(mTexts[index]);
+        }
+        return new ArrayList<>(result);
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final String key;
+        final String text;
+
+        Entry(String key, String text) {
+            this.key = key;
+            this.text = text;
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            return key.compareTo(another.key);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import java.util.BitSet;
+
+/**
+ * Approximate memory of the last tracks played, in a fixed kilobyte whatever the catalog
+ * size: a music ID sets one bit of the current generation, and after {@link #GENERATION_SIZE}
+ * tracks the current generation becomes the previous one, forgetting the oldest.
+ *
+ * A track is remembered for one to two generations. Two IDs may share a bit, so a track
+ * that wasn't played may be taken for a recent one: fine for shuffling, which only uses
+ * this to put those tracks last.
+ */
+class RecentlyPlayed {
+
+    static final int GENERATION_SIZE = 50;
+    private static final int BITS = 4096;
+
+    private BitSet mCurrent = new BitSet(BITS);
+    private BitSet mPrevious = new BitSet(BITS);
+    private int mCurrentCount;
+
+    public synchronized void add(String musicId) {
+        int bit = bitOf(musicId);
+        if (mCurrent.get(bit)) {
+            return;
+        }
+        if (mCurrentCount == GENERATION_SIZE) {
+            BitSet oldest = mPrevious;
+            oldest.clear();
+            mPrevious = mCurrent;
+            mCurrent = oldest;
+            mCurrentCount = 0;
+        }
+        mCurrent.set(bit);
+        mCurrentCount++;
+    }
+
+    public synchronized boolean contains(String musicId) {
+        int bit = bitOf(musicId);
+        return mCurrent.get(bit) || mPrevious.get(bit);
+    }
+
+    private static int bitOf(String musicId) {
+        return (musicId.hashCode() & Integer.MAX_VALUE) % BITS;
+    }
+}
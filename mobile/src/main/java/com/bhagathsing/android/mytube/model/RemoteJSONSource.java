@@ -17,20 +17,23 @@
 package com.bhagathsing.android.mytube.model;
 
 import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
 
 import com.bhagathsing.android.mytube.utils.LogHelper;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Utility class to get a list of MusicTrack's based on a server-side JSON
@@ -43,6 +46,10 @@ public class RemoteJSONSource implements MusicProviderSource {
     protected static final String CATALOG_URL =
         "http://storage.googleapis.com/automotive-media/music.json";
 
+    // A server that stops answering fails the load instead of holding its thread forever.
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
     private static final String JSON_MUSIC = "music";
     private static final String JSON_TITLE = "title";
     private static final String JSON_ALBUM = "album";
@@ -54,46 +61,101 @@ public class RemoteJSONSource implements MusicProviderSource {
     private static final String JSON_TOTAL_TRACK_COUNT = "totalTrackCount";
     private static final String JSON_DURATION = "duration";
 
+    // The genres of the catalog last read, which has no categories of its own.
+    private volatile List<String> mGenres = Collections.emptyList();
+
     @Override
     public Iterator<MediaMetadataCompat> iterator() {
+        int slashPos = CATALOG_URL.lastIndexOf('/');
+        final String path = CATALOG_URL.substring(0, slashPos + 1);
+        final Set<String> genres = new LinkedHashSet<>();
         try {
-            int slashPos = CATALOG_URL.lastIndexOf('/');
-            String path = CATALOG_URL.substring(0, slashPos + 1);
-            JSONObject jsonObj = fetchJSONFromUrl(CATALOG_URL);
-            ArrayList<MediaMetadataCompat> tracks = new ArrayList<>();
-            if (jsonObj != null) {
-                JSONArray jsonTracks = jsonObj.getJSONArray(JSON_MUSIC);
-
-                if (jsonTracks != null) {
-                    for (int j = 0; j < jsonTracks.length(); j++) {
-                        tracks.add(buildFromJSON(jsonTracks.getJSONObject(j), path));
+            URLConnection urlConnection = new URL(CATALOG_URL).openConnection();
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            // Between two reads, not for the whole catalog.
+            urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+            Reader in = new BufferedReader(new InputStreamReader(
+                    urlConnection.getInputStream(), "iso-8859-1"));
+            // Tracks are decoded as the caller iterates, while the response is still arriving.
+            return new JsonCatalogReader(in) {
+                @Override
+                protected MediaMetadataCompat readTrack(JsonReader reader) throws IOException {
+                    MediaMetadataCompat track = buildFromJSON(reader, path);
+                    if (track != null) {
+                        genres.add(track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
                     }
+                    return track;
                 }
-            }
-            return tracks.iterator();
-        } catch (JSONException e) {
+
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = super.hasNext();
+                    if (!hasNext) {
+                        mGenres = new ArrayList<>(genres);
+                    }
+                    return hasNext;
+                }
+            };
+        } catch (IOException e) {
             LogHelper.e(TAG, e, "Could not retrieve music list");
             throw new RuntimeException("Could not retrieve music list", e);
         }
     }
 
+    /**
+     * @return the genres of the tracks of the catalog last read to the end, so they can be
+     * browsed next to the local categories.
+     */
     @Override
     public Iterable<String> categories() {
-        return null;
+        return mGenres;
     }
 
-    private MediaMetadataCompat buildFromJSON(JSONObject json, String basePath) throws JSONException {
-        String title = json.getString(JSON_TITLE);
-        String album = json.getString(JSON_ALBUM);
-        String artist = json.getString(JSON_ARTIST);
-        String genre = json.getString(JSON_GENRE);
-        String source = json.getString(JSON_SOURCE);
-        String iconUrl = json.getString(JSON_IMAGE);
-        int trackNumber = json.getInt(JSON_TRACK_NUMBER);
-        int totalTrackCount = json.getInt(JSON_TOTAL_TRACK_COUNT);
-        int duration = json.getInt(JSON_DURATION) * 1000; // ms
+    private MediaMetadataCompat buildFromJSON(JsonReader reader, String basePath)
+            throws IOException {
+        String title = null;
+        String album = null;
+        String artist = null;
+        String genre = null;
+        String source = null;
+        String iconUrl = null;
+        int trackNumber = 0;
+        int totalTrackCount = 0;
+        int duration = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_TITLE.equals(name)) {
+                title = reader.nextString();
+            } else if (JSON_ALBUM.equals(name)) {
+                album = reader.nextString();
+            } else if (JSON_ARTIST.equals(name)) {
+                artist = reader.nextString();
+            } else if (JSON_GENRE.equals(name)) {
+                genre = reader.nextString();
+            } else if (JSON_SOURCE.equals(name)) {
+                source = reader.nextString();
+            } else if (JSON_IMAGE.equals(name)) {
+                iconUrl = reader.nextString();
+            } else if (JSON_TRACK_NUMBER.equals(name)) {
+                trackNumber = reader.nextInt();
+            } else if (JSON_TOTAL_TRACK_COUNT.equals(name)) {
+                totalTrackCount = reader.nextInt();
+            } else if (JSON_DURATION.equals(name)) {
+                duration = reader.nextInt() * 1000; // ms
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        LogHelper.d(TAG, "Found music track: ", json);
+        if (title == null || album == null || artist == null || genre == null
+                || source == null || iconUrl == null) {
+            LogHelper.w(TAG, "Skipping incomplete music track: ", title);
+            return null;
+        }
+        LogHelper.d(TAG, "Found music track: ", title);
 
         // Media is stored relative to JSON file
         if (!source.startsWith("http")) {
@@ -102,9 +164,9 @@ public class RemoteJSONSource implements MusicProviderSource {
         if (!iconUrl.startsWith("http")) {
             iconUrl = basePath + iconUrl;
         }
-        // Since we don't have a unique ID in the server, we fake one using the hashcode of
+        // Since we don't have a unique ID in the server, we derive one from the genre and
         // the music source. In a real world app, this could come from the server.
-        String id = String.valueOf(source.hashCode());
+        String id = TrackIdHelper.createTrackId(genre, source);
 
         // Adding the music source to the MediaMetadata (and consequently using it in the
         // mediaSession.setMetadata) is not a good idea for a real world music app, because
@@ -124,38 +186,4 @@ public class RemoteJSONSource implements MusicProviderSource {
                 .putLong(MediaMetadataCompat.METADATA_KEY_NUM_TRACKS, totalTrackCount)
                 .build();
     }
-
-    /**
-     * Download a JSON file from a server, parse the content and return the JSON
-     * object.
-     *
-     * @return result JSONObject containing the parsed representation.
-     */
-    private JSONObject fetchJSONFromUrl(String urlString) throws JSONException {
-        BufferedReader reader = null;
-        try {
-            URLConnection urlConnection = new URL(urlString).openConnection();
-            reader = new BufferedReader(new InputStreamReader(
-                    urlConnection.getInputStream(), "iso-8859-1"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            return new JSONObject(sb.toString());
-        } catch (JSONException e) {
-            throw e;
-        } catch (Exception e) {
-            LogHelper.e(TAG, "Failed to parse the json for media list", e);
-            return null;
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_ALBUM;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_DURATION;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_GENRE;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_ID;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_NAME;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_SOURCE;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.COLUMN_TITLE;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.TABLE_CATEGORIES;
+import static com.bhagathsing.android.mytube.model.MusicCatalogDatabase.TABLE_MUSIC;
+
+/**
+ * Local music catalog kept in SQLite instead of musictube.json: the store behind
+ * {@link MytubeSource}.
+ *
+ * Changes are the catalog records of {@link LocalCatalog}, applied by {@link #apply(List)}
+ * a batch at a time in one transaction. Duplicate checks go through the unique
+ * (genre, source) index and deletes by source through the source index, and
+ * {@link #iterator()} walks a cursor, so the catalog is never held in memory as a whole.
+ * On first use the existing JSON catalog is imported, see {@link MusicCatalogDatabase}.
+ */
+public class SQLiteMusicSource implements MusicProviderSource {
+
+    private static final String TAG = LogHelper.makeLogTag(SQLiteMusicSource.class);
+
+    private static final String[] MUSIC_COLUMNS = {
+            COLUMN_TITLE, COLUMN_ALBUM, COLUMN_GENRE, COLUMN_SOURCE, COLUMN_DURATION
+    };
+
+    private final MusicCatalogDatabase mDatabase;
+
+    public SQLiteMusicSource(Context context) {
+        mDatabase = new MusicCatalogDatabase(context.getApplicationContext(),
+                MytubeSource.jsonFile, MytubeSource.journalFile);
+    }
+
+    @Override
+    public Iterator<MediaMetadataCompat> iterator() {
+        // No ORDER BY: MusicProvider sorts each genre itself.
+        Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_MUSIC, MUSIC_COLUMNS,
+                null, null, null, null, null);
+        return new CursorIterator(cursor);
+    }
+
+    @Override
+    public Iterable<String> categories() {
+        List<String> categories = new ArrayList<>();
+        Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_CATEGORIES,
+                new String[] {COLUMN_NAME}, null, null, null, null, COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                categories.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return categories;
+    }
+
+    /**
+     * Apply catalog records in order, in a single transaction. A record that can't be read
+     * is logged and skipped.
+     */
+    public void apply(List<JSONObject> records) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (JSONObject record : records) {
+                try {
+                    apply(db, record);
+                } catch (JSONException e) {
+                    LogHelper.e(TAG, e, "Skipping unreadable catalog record: ", record);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void apply(SQLiteDatabase db, JSONObject record) throws JSONException {
+        String op = record.getString(LocalCatalog.RECORD_OP);
+        if (LocalCatalog.OP_INSERT_MUSIC.equals(op)) {
+            // Does nothing if the genre already has a track with that source.
+            db.insertWithOnConflict(TABLE_MUSIC, null, MusicCatalogDatabase.musicValues(
+                    LocalCatalog.trackFromJSON(record.getJSONObject(LocalCatalog.RECORD_MUSIC))),
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        } else if (LocalCatalog.OP_INSERT_CATEGORY.equals(op)) {
+            db.insertWithOnConflict(TABLE_CATEGORIES, null, MusicCatalogDatabase.categoryValues(
+                    record.getString(LocalCatalog.RECORD_CATEGORY)),
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        } else if (LocalCatalog.OP_DELETE_MUSIC.equals(op)) {
+            // From every genre.
+            db.delete(TABLE_MUSIC, COLUMN_SOURCE + " = ?",
+                    new String[] {record.getString(LocalCatalog.RECORD_SOURCE)});
+        } else if (LocalCatalog.OP_DELETE_CATEGORY.equals(op)) {
+            String[] args = {record.getString(LocalCatalog.RECORD_CATEGORY)};
+            db.delete(TABLE_CATEGORIES, COLUMN_NAME + " = ?", args);
+            db.delete(TABLE_MUSIC, COLUMN_GENRE + " = ?", args);
+        } else {
+            LogHelper.w(TAG, "Unknown catalog operation: ", op);
+        }
+    }
+
+    private static MediaMetadataCompat readTrack(Cursor cursor) {
+        return LocalCatalog.buildTrack(cursor.getString(0), cursor.getString(1),
+                cursor.getString(2), cursor.getString(3), cursor.getLong(4));
+    }
+
+    /**
+     * Builds tracks row by row, closing the cursor once the last one was read, or when a
+     * load stops early and closes the iterator.
+     */
+    private static class CursorIterator implements Iterator<MediaMetadataCompat>, Closeable {
+        private final Cursor mCursor;
+        private boolean mHasNext;
+
+        CursorIterator(Cursor cursor) {
+            mCursor = cursor;
+            mHasNext = cursor.moveToFirst();
+            if (!mHasNext) {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mHasNext;
+        }
+
+        @Override
+        public MediaMetadataCompat next() {
+            if (!mHasNext) {
+                throw new NoSuchElementException();
+            }
+            MediaMetadataCompat track = readTrack(mCursor);
+            mHasNext = mCursor.moveToNext();
+            if (!mHasNext) {
+                mCursor.close();
+            }
+            return track;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            mHasNext = false;
+            mCursor.close();
+        }
+    }
+}
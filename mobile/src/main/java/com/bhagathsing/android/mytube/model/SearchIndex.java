@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the title, artist, album and genre of the provider's tracks.
+ *
+ * Every word of those fields maps to the sorted ordinals of the tracks containing it, along
+ * with the fields it was found in. A query matches the tracks that have, for each of its
+ * words, a word starting with it; so it only touches the posting lists of matching words,
+ * never the whole catalog. Results are ranked by the fields that matched: title first,
+ * then artist, album and genre.
+ *
+ * For misspelled or misheard queries, the title, artist and album are also indexed by
+ * character trigram. {@link #fuzzySearch} scores the tracks sharing trigrams with the query
+ * by similarity and keeps the best ones in a bounded heap.
+ */
+class SearchIndex {
+
+    static final int FIELD_GENRE = 1;
+    static final int FIELD_ALBUM = 1 << 1;
+    static final int FIELD_ARTIST = 1 << 2;
+    static final int FIELD_TITLE = 1 << 3;
+    static final int ALL_FIELDS = FIELD_GENRE | FIELD_ALBUM | FIELD_ARTIST | FIELD_TITLE;
+    static final int FUZZY_FIELDS = FIELD_ALBUM | FIELD_ARTIST | FIELD_TITLE;
+    private static final int FIELD_COUNT = 4;
+
+    // Dice coefficient under which a fuzzy match is dropped.
+    private static final float MIN_SIMILARITY = 0.3f;
+
+    private final TreeMap<String, PostingList> mPostings = new TreeMap<>();
+    // Ordinal -> music ID; tracks themselves stay in the catalog.
+    private final ArrayList<String> mMusicIds = new ArrayList<>();
+    private final Map<String, Integer> mOrdinals = new HashMap<>();
+    private final ArrayList<Integer> mFreeOrdinals = new ArrayList<>();
+    private final Map<String, PostingList> mTrigrams = new HashMap<>();
+    // Number of distinct trigrams of each fuzzy field, per ordinal, indexed by field slot.
+    private final ArrayList<int[]> mTrigramCounts = new ArrayList<>();
+
+    /**
+     * @return the field flag for a MediaMetadataCompat key, or 0 if it isn't indexed.
+     */
+    static int fieldOf(String metadataKey) {
+        if (MediaMetadataCompat.METADATA_KEY_TITLE.equals(metadataKey)) {
+            return FIELD_TITLE;
+        } else if (MediaMetadataCompat.METADATA_KEY_ARTIST.equals(metadataKey)) {
+            return FIELD_ARTIST;
+        } else if (MediaMetadataCompat.METADATA_KEY_ALBUM.equals(metadataKey)) {
+            return FIELD_ALBUM;
+        } else if (MediaMetadataCompat.METADATA_KEY_GENRE.equals(metadataKey)) {
+            return FIELD_GENRE;
+        }
+        return 0;
+    }
+
+    private static int slot(int field) {
+        return Integer.numberOfTrailingZeros(field);
+    }
+
+    /**
+     * Index a track. A track already indexed under its music ID is left as it was indexed:
+     * the index doesn't keep the words it was added with, so to reindex a changed track,
+     * {@link #remove} its old version first, from the store it is still in.
+     *
+     * @return false if the music ID was already indexed.
+     */
+    boolean add(MediaMetadataCompat track) {
+        return add(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID),
+                track.getString(MediaMetadataCompat.METADATA_KEY_TITLE),
+                track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST),
+                track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM),
+                track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+    }
+
+    /**
+     * Add a track straight from the columns of its store, without building its metadata, see
+     * {@link #add(MediaMetadataCompat)}.
+     */
+    boolean add(TrackStore store, int ordinal) {
+        return add(store.getMediaId(ordinal), store.getTitle(ordinal), store.getArtist(ordinal),
+                store.getAlbum(ordinal), store.getGenre(ordinal));
+    }
+
+    /**
+     * Index a track by its fields, see {@link #add(MediaMetadataCompat)}.
+     */
+    synchronized boolean add(String musicId, String title, String artist, String album,
+                             String genre) {
+        if (mOrdinals.containsKey(musicId)) {
+            return false;
+        }
+        int ordinal;
+        if (mFreeOrdinals.isEmpty()) {
+            ordinal = mMusicIds.size();
+            mMusicIds.add(musicId);
+            mTrigramCounts.add(new int[FIELD_COUNT]);
+        } else {
+            ordinal = mFreeOrdinals.remove(mFreeOrdinals.size() - 1);
+            mMusicIds.set(ordinal, musicId);
+        }
+        mOrdinals.put(musicId, ordinal);
+        for (Map.Entry<String, Integer> entry :
+                tokenize(title, artist, album, genre).entrySet()) {
+            PostingList postings = mPostings.get(entry.getKey());
+            if (postings == null) {
+                postings = new PostingList();
+                mPostings.put(entry.getKey(), postings);
+            }
+            postings.add(ordinal, entry.getValue());
+        }
+        int[] counts = mTrigramCounts.get(ordinal);
+        for (Map.Entry<String, Integer> entry :
+                trigrams(title, artist, album, counts).entrySet()) {
+            PostingList postings = mTrigrams.get(entry.getKey());
+            if (postings == null) {
+                postings = new PostingList();
+                mTrigrams.put(entry.getKey(), postings);
+            }
+            postings.add(ordinal, entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Remove a track of a store, with the fields it was added with: its words are found again
+     * from the store's columns rather than kept in the index.
+     */
+    void remove(TrackStore store, int trackOrdinal) {
+        remove(store.getMediaId(trackOrdinal), store.getTitle(trackOrdinal),
+                store.getArtist(trackOrdinal), store.getAlbum(trackOrdinal),
+                store.getGenre(trackOrdinal));
+    }
+
+    private synchronized void remove(String musicId, String title, String artist, String album,
+                                     String genre) {
+        Integer ordinal = mOrdinals.remove(musicId);
+        if (ordinal == null) {
+            return;
+        }
+        mMusicIds.set(ordinal, null);
+        mFreeOrdinals.add(ordinal);
+        for (String token : tokenize(title, artist, album, genre).keySet()) {
+            PostingList postings = mPostings.get(token);
+            if (postings != null && postings.remove(ordinal) && postings.size == 0) {
+                mPostings.remove(token);
+            }
+        }
+        for (String trigram :
+                trigrams(title, artist, album, mTrigramCounts.get(ordinal)).keySet()) {
+            PostingList postings = mTrigrams.get(trigram);
+            if (postings != null && postings.remove(ordinal) && postings.size == 0) {
+                mTrigrams.remove(trigram);
+            }
+        }
+    }
+
+    /**
+     * Find the tracks matching every word of the query in one of the given fields.
+     *
+     * @param fields a combination of the FIELD_* flags.
+     * @return the music IDs of the matching tracks, best matches first.
+     */
+    synchronized List<String> search(String query, int fields) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, Integer> scores = null;
+        for (String term : terms) {
+            Map<Integer, Integer> termScores = new HashMap<>();
+            SortedMap<String, PostingList> matches =
+                    mPostings.subMap(term, term + Character.MAX_VALUE);
+            for (PostingList postings : matches.values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    int matched = postings.fields[i] & fields;
+                    if (matched == 0) {
+                        continue;
+                    }
+                    int ordinal = postings.ordinals[i];
+                    if (scores != null && !scores.containsKey(ordinal)) {
+                        continue;
+                    }
+                    Integer best = termScores.get(ordinal);
+                    int weight = Integer.highestOneBit(matched);
+                    if (best == null || best < weight) {
+                        termScores.put(ordinal, weight);
+                    }
+                }
+            }
+            if (scores != null) {
+                for (Map.Entry<Integer, Integer> entry : termScores.entrySet()) {
+                    entry.setValue(entry.getValue() + scores.get(entry.getKey()));
+                }
+            }
+            scores = termScores;
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        final Map<Integer, Integer> finalScores = scores;
+        List<Integer> ordinals = new ArrayList<>(scores.keySet());
+        Collections.sort(ordinals, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int byScore = finalScores.get(o2) - finalScores.get(o1);
+                return byScore != 0 ? byScore : o1 - o2;
+            }
+        });
+        List<String> result = new ArrayList<>(ordinals.size());
+        for (Integer ordinal : ordinals) {
+            result.add(mMusicIds.get(ordinal));
+        }
+        return result;
+    }
+
+    /**
+     * Find the tracks with a field most similar to the query, by shared character trigrams.
+     * Tolerates typos and misheard words that {@link #search} would miss.
+     *
+     * @param fields a combination of the FIELD_* flags, only those in FUZZY_FIELDS are used.
+     * @param limit maximum number of results.
+     * @return the music IDs of the matching tracks, most similar first.
+     */
+    synchronized List<String> fuzzySearch(String query, int fields, int limit) {
+        Set<String> queryTrigrams = trigrams(query);
+        if (queryTrigrams.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        fields &= FUZZY_FIELDS;
+        // Shared trigram count per ordinal, indexed by field slot.
+        Map<Integer, int[]> shared = new HashMap<>();
+        for (String trigram : queryTrigrams) {
+            PostingList postings = mTrigrams.get(trigram);
+            if (postings == null) {
+                continue;
+            }
+            for (int i = 0; i < postings.size; i++) {
+                int matched = postings.fields[i] & fields;
+                if (matched == 0) {
+                    continue;
+                }
+                int[] counts = shared.get(postings.ordinals[i]);
+                if (counts == null) {
+                    counts = new int[FIELD_COUNT];
+                    shared.put(postings.ordinals[i], counts);
+                }
+                for (int field = FIELD_ALBUM; field <= FIELD_TITLE; field <<= 1) {
+                    if ((matched & field) != 0) {
+                        counts[slot(field)]++;
+                    }
+                }
+            }
+        }
+
+        // Min-heap of the best candidates so far, never larger than the limit.
+        PriorityQueue<Match> best = new PriorityQueue<>(limit);
+        for (Map.Entry<Integer, int[]> entry : shared.entrySet()) {
+            int ordinal = entry.getKey();
+            int[] fieldTrigrams = mTrigramCounts.get(ordinal);
+            float similarity = 0;
+            for (int field = FIELD_ALBUM; field <= FIELD_TITLE; field <<= 1) {
+                int common = entry.getValue()[slot(field)];
+                if (common > 0) {
+                    similarity = Math.max(similarity,
+                            2f * common / (queryTrigrams.size() + fieldTrigrams[slot(field)]));
+                }
+            }
+            if (similarity < MIN_SIMILARITY) {
+                continue;
+            }
+            if (best.size() < limit) {
+                best.add(new Match(ordinal, similarity));
+            } else if (best.peek().similarity < similarity) {
+                best.poll();
+                best.add(new Match(ordinal, similarity));
+            }
+        }
+
+        String[] result = new String[best.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = mMusicIds.get(best.poll().ordinal);
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * @return the words of the track's indexed fields, with the fields each one was found in.
+     */
+    private static Map<String, Integer> tokenize(String title, String artist, String album,
+                                                 String genre) {
+        Map<String, Integer> tokens = new HashMap<>();
+        addTokens(tokens, title, FIELD_TITLE);
+        addTokens(tokens, artist, FIELD_ARTIST);
+        addTokens(tokens, album, FIELD_ALBUM);
+        addTokens(tokens, genre, FIELD_GENRE);
+        return tokens;
+    }
+
+    private static void addTokens(Map<String, Integer> tokens, String text, int field) {
+        if (text == null) {
+            return;
+        }
+        for (String token : tokenize(text)) {
+            Integer fields = tokens.get(token);
+            tokens.put(token, fields == null ? field : fields | field);
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the trigrams of the track's fuzzy fields, with the fields each one was found
+     * in. Fills counts with the number of trigrams of each field.
+     */
+    private static Map<String, Integer> trigrams(String title, String artist, String album,
+                                                 int[] counts) {
+        Map<String, Integer> trigrams = new HashMap<>();
+        addTrigrams(trigrams, counts, title, FIELD_TITLE);
+        addTrigrams(trigrams, counts, artist, FIELD_ARTIST);
+        addTrigrams(trigrams, counts, album, FIELD_ALBUM);
+        return trigrams;
+    }
+
+    private static void addTrigrams(Map<String, Integer> trigrams, int[] counts, String text,
+                                    int field) {
+        if (text == null) {
+            counts[slot(field)] = 0;
+            return;
+        }
+        Set<String> fieldTrigrams = trigrams(text);
+        counts[slot(field)] = fieldTrigrams.size();
+        for (String trigram : fieldTrigrams) {
+            Integer fields = trigrams.get(trigram);
+            trigrams.put(trigram, fields == null ? field : fields | field);
+        }
+    }
+
+    /**
+     * @return the distinct trigrams of the words of the text, each word padded with two
+     * leading and one trailing space so that word starts weigh more.
+     */
+    static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (String word : tokenize(text)) {
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+
+    private static class Match implements Comparable<Match> {
+        final int ordinal;
+        final float similarity;
+
+        Match(int ordinal, float similarity) {
+            this.ordinal = ordinal;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public int compareTo(Match another) {
+            return Float.compare(similarity, another.similarity);
+        }
+    }
+
+    /**
+     * Sorted track ordinals containing a word, with the fields it appears in for each.
+     */
+    private static class PostingList {
+        int[] ordinals = new int[4];
+        int[] fields = new int[4];
+        int size;
+
+        void add(int ordinal, int field) {
+            int index = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (index >= 0) {
+                fields[index] |= field;
+                return;
+            }
+            index = -index - 1;
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                fields = Arrays.copyOf(fields, size * 2);
+            }
+            System.arraycopy(ordinals, index, ordinals, index + 1, size - index);
+            System.arraycopy(fields, index, fields, index + 1, size - index);
+            ordinals[index] = ordinal;
+            fields[index] = field;
+            size++;
+        }
+
+        boolean remove(int ordinal) {
+            int index = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ordinals, index + 1, ordinals, index, size - index - 1);
+            System.arraycopy(fields, index + 1, fields, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+}
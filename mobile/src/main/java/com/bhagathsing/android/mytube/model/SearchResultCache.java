@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import com.bhagathsing.android.mytube.utils.FileHelper;
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.WriteBehind;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YouTube search results by query, kept on disk so a repeated search needs no API call.
+ *
+ * An entry is fresh for {@link #FRESH_MS} after it was fetched. After that it is stale: still
+ * returned, for the caller to show at once and fetch the query again in the background, until
+ * {@link #MAX_AGE_MS} where it is dropped. The least recently used entries are dropped too once
+ * the cache holds more than {@link #MAX_RESULTS} results in all. Only the first page of a
+ * query is cached, with the token of the next one so the search can go on from there.
+ *
+ * The whole cache is one file of one JSON entry per line, least recently used first, read on
+ * first use. Writes are write-behind like {@link FavoritesStore}.
+ */
+public class SearchResultCache {
+
+    private static final String TAG = LogHelper.makeLogTag(SearchResultCache.class);
+
+    static final long FRESH_MS = TimeUnit.HOURS.toMillis(12);
+    static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    static final int MAX_RESULTS = 2000;
+
+    private static final String KEY_QUERY = "q";
+    private static final String KEY_FETCHED = "t";
+    private static final String KEY_RESULTS = "r";
+    private static final String KEY_NEXT_PAGE = "next";
+    private static final String KEY_VIDEO_ID = "id";
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_DURATION = "duration";
+
+    /**
+     * What a search needs of a video to build its track.
+     */
+    public static class Result {
+        public final String videoId;
+        public final String title;
+        public final long duration; // ms
+
+        public Result(String videoId, String title, long duration) {
+            this.videoId = videoId;
+            this.title = title;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * The results of one query. Never changed once cached.
+     */
+    public static class Entry {
+        public final List<Result> results;
+        // Null if there are no more results.
+        public final String nextPageToken;
+        final long fetched;
+
+        Entry(List<Result> results, String nextPageToken, long fetched) {
+            this.results = Collections.unmodifiableList(results);
+            this.nextPageToken = nextPageToken;
+            this.fetched = fetched;
+        }
+
+        /**
+         * @return false if the query should be fetched again.
+         */
+        public boolean isFresh() {
+            long age = System.currentTimeMillis() - fetched;
+            return age >= 0 && age < FRESH_MS;
+        }
+    }
+
+    private final File mFile;
+    private final WriteBehind mWriteBehind = new WriteBehind(new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    });
+    // Held while writing the file, so an older cache never lands after a newer one.
+    private final Object mWriteLock = new Object();
+
+    // Guarded by this cache, least recently used first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mResultCount;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public SearchResultCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Does disk I/O the first time: call it off the main thread.
+     *
+     * @return the cached results of the query, fresh or stale, or null.
+     */
+    public synchronized Entry get(String query) {
+        load();
+        String key = normalize(query);
+        Entry entry = mEntries.get(key);
+        if (entry != null && isExpired(entry)) {
+            remove(key);
+            setDirty();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the results just fetched for the query, in place of any older ones.
+     */
+    public synchronized void put(String query, List<Result> results, String nextPageToken) {
+        load();
+        String key = normalize(query);
+        remove(key);
+        mEntries.put(key, new Entry(new ArrayList<>(results), nextPageToken,
+                System.currentTimeMillis()));
+        mResultCount += results.size();
+        trim();
+        setDirty();
+    }
+
+    /**
+     * Write pending changes to disk before returning.
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            List<JSONObject> records = new ArrayList<>();
+            synchronized (this) {
+                // Never replace the file with the changes only.
+                load();
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                try {
+                    for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                        records.add(toJson(entry.getKey(), entry.getValue()));
+                    }
+                } catch (JSONException e) {
+                    LogHelper.e(TAG, e, "Could not serialize search results");
+                    return;
+                }
+            }
+            write(records);
+        }
+    }
+
+    // Called with the cache locked.
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), FileHelper.CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String key = record.getString(KEY_QUERY);
+                    remove(key);
+                    Entry entry = fromJson(record);
+                    mEntries.put(key, entry);
+                    mResultCount += entry.results.size();
+                } catch (JSONException e) {
+                    LogHelper.w(TAG, "Skipping unreadable search results: ", line);
+                }
+            }
+            LogHelper.d(TAG, "Loaded search results of ", mEntries.size(), " queries");
+        } catch (FileNotFoundException e) {
+            // Nothing searched yet.
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read search results");
+        } finally {
+            FileHelper.closeQuietly(reader);
+        }
+        if (trim()) {
+            setDirty();
+        }
+    }
+
+    // Called with the cache locked.
+    private boolean trim() {
+        boolean trimmed = false;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (mResultCount > MAX_RESULTS || isExpired(entry)) {
+                it.remove();
+                mResultCount -= entry.results.size();
+                trimmed = true;
+            }
+        }
+        return trimmed;
+    }
+
+    // Called with the cache locked.
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mResultCount -= entry.results.size();
+        }
+    }
+
+    // Called with the cache locked.
+    private void setDirty() {
+        mDirty = true;
+        mWriteBehind.schedule();
+    }
+
+    private void write(List<JSONObject> records) {
+        try {
+            FileHelper.replaceLines(mFile, records);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write search results");
+        }
+    }
+
+    private static boolean isExpired(Entry entry) {
+        long age = System.currentTimeMillis() - entry.fetched;
+        return age < 0 || age >= MAX_AGE_MS;
+    }
+
+    private static String normalize(String query) {
+        return query == null ? "" : query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    private static JSONObject toJson(String key, Entry entry) throws JSONException {
+        JSONArray results = new JSONArray();
+        for (Result result : entry.results) {
+            results.put(new JSONObject()
+                    .put(KEY_VIDEO_ID, result.videoId)
+                    .put(KEY_TITLE, result.title)
+                    .put(KEY_DURATION, result.duration));
+        }
+        return new JSONObject()
+                .put(KEY_QUERY, key)
+                .put(KEY_FETCHED, entry.fetched)
+                .put(KEY_NEXT_PAGE, entry.nextPageToken)
+                .put(KEY_RESULTS, results);
+    }
+
+    private static Entry fromJson(JSONObject record) throws JSONException {
+        JSONArray array = record.getJSONArray(KEY_RESULTS);
+        List<Result> results = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            results.add(new Result(result.getString(KEY_VIDEO_ID),
+                    result.getString(KEY_TITLE), result.getLong(KEY_DURATION)));
+        }
+        String nextPageToken = record.has(KEY_NEXT_PAGE) ? record.getString(KEY_NEXT_PAGE) : null;
+        return new Entry(results, nextPageToken, record.getLong(KEY_FETCHED));
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable list of the tracks of one genre, sorted by title in the order of the default
+ * locale, with a lookup by source.
+ *
+ * Tracks are ordinals in a {@link TrackStore}: their metadata is only built when read through
+ * {@link #getTracks()} or {@link #findBySource}. The collation key of each title is computed
+ * once, when the track is added, so sorting and binary-search inserts compare precomputed
+ * keys instead of folding strings on every comparison. Changes return a new list and leave
+ * this one untouched, so it can be read from any thread without locking.
+ *
+ * Each change copies the list's arrays: adding or removing one track costs O(n) in the size
+ * of its genre, a few System.arraycopy calls over ints and references, with the position
+ * itself found in O(log n). Genres hold at most a few thousand tracks, so this stays well
+ * under the cost of building the track's metadata; whole loads go through {@link #of} and
+ * sort once instead.
+ */
+public class SortedTrackList {
+
+    private static final Collator sCollator = Collator.getInstance();
+
+    static {
+        // Ignore case, but not accents.
+        sCollator.setStrength(Collator.SECONDARY);
+    }
+
+    private final TrackStore mStore;
+    // Ordinals sorted by title, with their collation keys.
+    private final CollationKey[] mKeys;
+    private final int[] mOrdinals;
+    // The same ordinals sorted by source.
+    private final int[] mBySource;
+    private final List<MediaMetadataCompat> mTrackList = new AbstractList<MediaMetadataCompat>() {
+        @Override
+        public MediaMetadataCompat get(int index) {
+            return mStore.get(mOrdinals[index]);
+        }
+
+        @Override
+        public int size() {
+            return mOrdinals.length;
+        }
+    };
+
+    private SortedTrackList(TrackStore store, CollationKey[] keys, int[] ordinals,
+                            int[] bySource) {
+        mStore = store;
+        mKeys = keys;
+        mOrdinals = ordinals;
+        mBySource = bySource;
+    }
+
+    static SortedTrackList empty(TrackStore store) {
+        return new SortedTrackList(store, new CollationKey[0], new int[0], new int[0]);
+    }
+
+    /**
+     * Build a list from unsorted tracks of the store with a single sort. Tracks with the
+     * source of an earlier one are dropped.
+     */
+    static SortedTrackList of(final TrackStore store, int[] ordinals, int count) {
+        Set<String> sources = new HashSet<>();
+        final CollationKey[] keys = new CollationKey[count];
+        Integer[] order = new Integer[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (sources.add(store.getSource(ordinals[i]))) {
+                keys[size] = collationKey(store.getTitle(ordinals[i]));
+                order[size] = ordinals[i];
+                size++;
+            }
+        }
+        // Sort positions by key, then apply the order to keys and ordinals together. Stable,
+        // so tracks with the same title keep their relative order.
+        Integer[] positions = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(positions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer p1, Integer p2) {
+                return keys[p1].compareTo(keys[p2]);
+            }
+        });
+        CollationKey[] sortedKeys = new CollationKey[size];
+        int[] sortedOrdinals = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedKeys[i] = keys[positions[i]];
+            sortedOrdinals[i] = order[positions[i]];
+        }
+
+        Integer[] bySource = Arrays.copyOf(order, size);
+        Arrays.sort(bySource, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return compareSources(store.getSource(o1), store.getSource(o2));
+            }
+        });
+        int[] sortedBySource = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedBySource[i] = bySource[i];
+        }
+        return new SortedTrackList(store, sortedKeys, sortedOrdinals, sortedBySource);
+    }
+
+    /**
+     * @return a list with the track of the given ordinal inserted at its place, after the
+     * tracks with the same title; or this list if it already has a track with that source.
+     */
+    SortedTrackList withTrack(int ordinal) {
+        String source = mStore.getSource(ordinal);
+        int sourceIndex = lowerBoundSource(source);
+        if (sourceIndex < mBySource.length
+                && compareSources(mStore.getSource(mBySource[sourceIndex]), source) == 0) {
+            return this;
+        }
+        CollationKey key = collationKey(mStore.getTitle(ordinal));
+        int index = upperBound(key);
+        int size = mOrdinals.length;
+        CollationKey[] keys = new CollationKey[size + 1];
+        int[] ordinals = new int[size + 1];
+        System.arraycopy(mKeys, 0, keys, 0, index);
+        System.arraycopy(mOrdinals, 0, ordinals, 0, index);
+        keys[index] = key;
+        ordinals[index] = ordinal;
+        System.arraycopy(mKeys, index, keys, index + 1, size - index);
+        System.arraycopy(mOrdinals, index, ordinals, index + 1, size - index);
+        return new SortedTrackList(mStore, keys, ordinals, insert(mBySource, sourceIndex, ordinal));
+    }
+
+    /**
+     * @return a list without the track with the given source, or this list if it has none.
+     */
+    SortedTrackList withoutSource(String source) {
+        int sourceIndex = findSource(source);
+        if (sourceIndex < 0) {
+            return this;
+        }
+        int ordinal = mBySource[sourceIndex];
+        int index = indexOf(ordinal);
+        int size = mOrdinals.length;
+        CollationKey[] keys = new CollationKey[size - 1];
+        System.arraycopy(mKeys, 0, keys, 0, index);
+        System.arraycopy(mKeys, index + 1, keys, index, size - index - 1);
+        return new SortedTrackList(mStore, keys, remove(mOrdinals, index),
+                remove(mBySource, sourceIndex));
+    }
+
+    /**
+     * @return a list with the track of the given ordinal replaced, at the same place, by the
+     * track of another ordinal with the same title and source; or this list if it doesn't
+     * have the track.
+     */
+    SortedTrackList withOrdinalReplaced(int ordinal, int newOrdinal) {
+        int sourceIndex = findSource(mStore.getSource(ordinal));
+        if (sourceIndex < 0 || mBySource[sourceIndex] != ordinal) {
+            return this;
+        }
+        int[] ordinals = mOrdinals.clone();
+        ordinals[indexOf(ordinal)] = newOrdinal;
+        int[] bySource = mBySource.clone();
+        bySource[sourceIndex] = newOrdinal;
+        return new SortedTrackList(mStore, mKeys, ordinals, bySource);
+    }
+
+    /**
+     * @return the same list over another store, each ordinal replaced by newOrdinals[ordinal].
+     */
+    SortedTrackList withStore(TrackStore store, int[] newOrdinals) {
+        int[] ordinals = new int[mOrdinals.length];
+        int[] bySource = new int[mBySource.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = newOrdinals[mOrdinals[i]];
+            bySource[i] = newOrdinals[mBySource[i]];
+        }
+        return new SortedTrackList(store, mKeys, ordinals, bySource);
+    }
+
+    /**
+     * @return the track with the given source, or null.
+     */
+    public MediaMetadataCompat findBySource(String source) {
+        int sourceIndex = findSource(source);
+        return sourceIndex < 0 ? null : mStore.get(mBySource[sourceIndex]);
+    }
+
+    boolean containsSource(String source) {
+        return findSource(source) >= 0;
+    }
+
+    public int size() {
+        return mOrdinals.length;
+    }
+
+    /**
+     * @return the tracks in order, as an immutable list. The metadata of a track is built
+     * each time it is read.
+     */
+    public List<MediaMetadataCompat> getTracks() {
+        return mTrackList;
+    }
+
+    /**
+     * @return the ordinal in the store of the track at the given index.
+     */
+    int getOrdinal(int index) {
+        return mOrdinals[index];
+    }
+
+    TrackStore getStore() {
+        return mStore;
+    }
+
+    private int findSource(String source) {
+        int index = lowerBoundSource(source);
+        if (index < mBySource.length
+                && compareSources(mStore.getSource(mBySource[index]), source) == 0) {
+            return index;
+        }
+        return -1;
+    }
+
+    // Index in title order of an ordinal of the list.
+    private int indexOf(int ordinal) {
+        int index = lowerBound(collationKey(mStore.getTitle(ordinal)));
+        while (mOrdinals[index] != ordinal) {
+            index++;
+        }
+        return index;
+    }
+
+    private int lowerBoundSource(String source) {
+        int low = 0;
+        int high = mBySource.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareSources(mStore.getSource(mBySource[mid]), source) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int lowerBound(CollationKey key) {
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int upperBound(CollationKey key) {
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid].compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static int[] remove(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static int compareSources(String source1, String source2) {
+        if (source1 == null) {
+            return source2 == null ? 0 : -1;
+        }
+        return source2 == null ? 1 : source1.compareTo(source2);
+    }
+
+    private static CollationKey collationKey(String title) {
+        // Collator instances are not thread safe.
+        synchronized (sCollator) {
+            return sCollator.getCollationKey(title == null ? "" : title);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column store of tracks: each field of a track is kept in an array of its own, indexed by
+ * the track's ordinal, instead of a {@link MediaMetadataCompat} and its Bundle per track.
+ * Genres and albums are dictionary encoded (a genre is stored once, tracks keep its code),
+ * durations are a long[]. A MediaMetadataCompat is only built by {@link #get(int)}, when a
+ * track is handed out.
+ *
+ * Tracks with metadata beyond the columns (artist, art...) are also kept whole, so nothing is
+ * lost; the local catalog and YouTube tracks never have any.
+ *
+ * The store only grows: a track keeps its ordinal, and its fields never change once added,
+ * so readers holding an ordinal published to them (eg through a {@link CatalogSnapshot})
+ * don't need any lock. Adding tracks is synchronized. Removed tracks are simply no longer
+ * referenced: owners copy the tracks they still use to a new store once they have too many
+ * of those, see {@link #copy(TrackStore, int)}.
+ */
+class TrackStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final String[] COLUMN_KEYS = {
+            MediaMetadataCompat.METADATA_KEY_MEDIA_ID,
+            MediaMetadataCompat.METADATA_KEY_TITLE,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE,
+            MediaMetadataCompat.METADATA_KEY_DURATION,
+            MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE
+    };
+
+    // Replaced by a bigger copy when full. Published with a volatile write after the copy, so
+    // readers always see the values of the ordinals they were given.
+    private static class Columns {
+        final String[] mediaIds;
+        final String[] titles;
+        final String[] sources;
+        final int[] albums;
+        final int[] genres;
+        final long[] durations;
+
+        Columns(int capacity) {
+            mediaIds = new String[capacity];
+            titles = new String[capacity];
+            sources = new String[capacity];
+            albums = new int[capacity];
+            genres = new int[capacity];
+            durations = new long[capacity];
+        }
+
+        Columns(Columns from, int capacity) {
+            mediaIds = Arrays.copyOf(from.mediaIds, capacity);
+            titles = Arrays.copyOf(from.titles, capacity);
+            sources = Arrays.copyOf(from.sources, capacity);
+            albums = Arrays.copyOf(from.albums, capacity);
+            genres = Arrays.copyOf(from.genres, capacity);
+            durations = Arrays.copyOf(from.durations, capacity);
+        }
+    }
+
+    /**
+     * Distinct strings with an int code each. Codes are never reused.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> mCodes = new HashMap<>();
+        private volatile String[] mValues = new String[16];
+
+        // Called with the store locked.
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                code = mCodes.size();
+                String[] values = mValues;
+                if (code == values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+                values[code] = value;
+                mValues = values;
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return code < 0 ? null : mValues[code];
+        }
+    }
+
+    private volatile Columns mColumns = new Columns(INITIAL_CAPACITY);
+    private volatile int mSize;
+    private final Dictionary mAlbums = new Dictionary();
+    private final Dictionary mGenres = new Dictionary();
+    // Ordinal -> the whole track, for the tracks with more than the columns.
+    private final Map<Integer, MediaMetadataCompat> mWholeTracks = new ConcurrentHashMap<>();
+
+    /**
+     * @return the new track's ordinal.
+     */
+    synchronized int add(MediaMetadataCompat track) {
+        int ordinal = add(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID),
+                track.getString(MediaMetadataCompat.METADATA_KEY_TITLE),
+                track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM),
+                track.getString(MediaMetadataCompat.METADATA_KEY_GENRE),
+                track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE),
+                track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        if (!hasColumnsOnly(track)) {
+            mWholeTracks.put(ordinal, track);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Add a track with nothing beyond the columns.
+     *
+     * @return the new track's ordinal.
+     */
+    synchronized int add(String mediaId, String title, String album, String genre,
+                         String source, long duration) {
+        int ordinal = mSize;
+        Columns columns = mColumns;
+        if (ordinal == columns.mediaIds.length) {
+            columns = new Columns(columns, ordinal * 2);
+            mColumns = columns;
+        }
+        columns.mediaIds[ordinal] = mediaId;
+        columns.titles[ordinal] = title;
+        columns.sources[ordinal] = source;
+        columns.albums[ordinal] = mAlbums.encode(album);
+        columns.genres[ordinal] = mGenres.encode(genre);
+        columns.durations[ordinal] = duration;
+        mSize = ordinal + 1;
+        return ordinal;
+    }
+
+    /**
+     * Add a track of another store, copying its columns without building its metadata.
+     *
+     * @return the track's ordinal in this store.
+     */
+    synchronized int copy(TrackStore from, int fromOrdinal) {
+        MediaMetadataCompat whole = from.mWholeTracks.get(fromOrdinal);
+        if (whole != null) {
+            return add(whole);
+        }
+        return add(from.getMediaId(fromOrdinal), from.getTitle(fromOrdinal),
+                from.getAlbum(fromOrdinal), from.getGenre(fromOrdinal),
+                from.getSource(fromOrdinal), from.getDuration(fromOrdinal));
+    }
+
+    /**
+     * @return the number of tracks ever added, removed ones included.
+     */
+    int size() {
+        return mSize;
+    }
+
+    String getMediaId(int ordinal) {
+        return mColumns.mediaIds[ordinal];
+    }
+
+    String getTitle(int ordinal) {
+        return mColumns.titles[ordinal];
+    }
+
+    String getSource(int ordinal) {
+        return mColumns.sources[ordinal];
+    }
+
+    String getAlbum(int ordinal) {
+        return mAlbums.decode(mColumns.albums[ordinal]);
+    }
+
+    String getGenre(int ordinal) {
+        return mGenres.decode(mColumns.genres[ordinal]);
+    }
+
+    long getDuration(int ordinal) {
+        return mColumns.durations[ordinal];
+    }
+
+    /**
+     * @return the artist of the track, which only tracks kept whole have; or null.
+     */
+    String getArtist(int ordinal) {
+        MediaMetadataCompat whole = mWholeTracks.get(ordinal);
+        return whole == null ? null : whole.getString(MediaMetadataCompat.METADATA_KEY_ARTIST);
+    }
+
+    /**
+     * @return the metadata of the track, built from the columns.
+     */
+    MediaMetadataCompat get(int ordinal) {
+        MediaMetadataCompat whole = mWholeTracks.get(ordinal);
+        if (whole != null) {
+            return whole;
+        }
+        Columns columns = mColumns;
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, columns.mediaIds[ordinal])
+                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, columns.sources[ordinal])
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, mAlbums.decode(columns.albums[ordinal]))
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, columns.durations[ordinal])
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, mGenres.decode(columns.genres[ordinal]))
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, columns.titles[ordinal])
+                .build();
+    }
+
+    private static boolean hasColumnsOnly(MediaMetadataCompat track) {
+        for (String key : track.keySet()) {
+            if (!isColumn(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isColumn(String key) {
+        for (String column : COLUMN_KEYS) {
+            if (column.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -4,7 +4,6 @@ import android.Manifest;
 import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.Dialog;
-import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -12,74 +11,125 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
-import android.support.v4.media.MediaMetadataCompat;
 import android.os.Bundle;
-import android.util.Log;
+import android.widget.Toast;
 
-import com.bhagathsing.android.mytube.utils.MyHelper;
+import com.bhagathsing.android.mytube.utils.LogHelper;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
-import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GooglePlayServicesAvailabilityIOException;
 import com.google.api.client.googleapis.extensions.android.gms.auth.UserRecoverableAuthIOException;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.ExponentialBackOff;
-import com.google.api.services.youtube.YouTube;
 import com.google.api.services.youtube.YouTubeScopes;
-import com.google.api.services.youtube.model.SearchListResponse;
-import com.google.api.services.youtube.model.SearchResult;
-import com.google.api.services.youtube.model.Video;
-import com.google.api.services.youtube.model.VideoListResponse;
 
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import pub.devrel.easypermissions.AfterPermissionGranted;
 import pub.devrel.easypermissions.EasyPermissions;
 
 public class YoutubeAPIActivity extends Activity
         implements EasyPermissions.PermissionCallbacks{
+
+    private static final String TAG = LogHelper.makeLogTag(YoutubeAPIActivity.class);
+
     GoogleAccountCredential mCredential;
-    ProgressDialog mProgress;
 
     static final int REQUEST_ACCOUNT_PICKER = 1000;
     static final int REQUEST_AUTHORIZATION = 1001;
     static final int REQUEST_GOOGLE_PLAY_SERVICES = 1002;
     static final int REQUEST_PERMISSION_GET_ACCOUNTS = 1003;
 
-    public static final long SEARCH_MAX_RESULTS_NUM = 45L;
+    public static final long SEARCH_MAX_RESULTS_NUM = YoutubeSearchSession.PAGE_SIZE;
     private static final String PREF_ACCOUNT_NAME = "accountName";
     private static final String[] SCOPES = { YouTubeScopes.YOUTUBE_READONLY };
 
+    // The result of a search: the tracks of its first page, and the token of the next page.
+    public static final String EXTRA_TRACKS = "tracks";
+    public static final String EXTRA_NEXT_PAGE_TOKEN = "next_page_token";
+
+    private static SearchResultCache sSearchCache;
+
     private String query;
     private String genre = null;
-    public static ConcurrentMap<String, MutableMediaMetadata> searchResults;
+    private MakeRequestTask mRequestTask;
+
+    public static synchronized SearchResultCache getSearchCache(Context context) {
+        if (sSearchCache == null) {
+            sSearchCache = new SearchResultCache(
+                    new File(context.getCacheDir(), "search_results.txt"));
+        }
+        return sSearchCache;
+    }
+
+    /**
+     * @return a session for the query if the API can be called without user interaction, else
+     * null: the first search has to go through this activity, to pick an account.
+     */
+    public static YoutubeSearchSession openSessionIfAuthorized(Context context, String query,
+                                                               String genre) {
+        String accountName = getAccountPreferences(context).getString(PREF_ACCOUNT_NAME, null);
+        if (accountName == null
+                || GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                        != ConnectionResult.SUCCESS
+                || !EasyPermissions.hasPermissions(context, Manifest.permission.GET_ACCOUNTS)) {
+            return null;
+        }
+        GoogleAccountCredential credential = GoogleAccountCredential.usingOAuth2(
+                context.getApplicationContext(), Arrays.asList(SCOPES))
+                .setBackOff(new ExponentialBackOff());
+        credential.setSelectedAccountName(accountName);
+        return new YoutubeSearchSession(credential, query, genre);
+    }
+
+    // The file getPreferences() of this activity uses, named after it relative to the package.
+    private static SharedPreferences getAccountPreferences(Context context) {
+        return context.getSharedPreferences(
+                "model." + YoutubeAPIActivity.class.getSimpleName(), Context.MODE_PRIVATE);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        searchResults = new ConcurrentHashMap<>();
-
         Intent intent = getIntent();
         query = intent.getStringExtra("query");
         genre = intent.getStringExtra("genre");
 
-        mProgress = new ProgressDialog(this);
-        mProgress.setMessage("Searching musics ...");
         // Initialize credentials and service object.
         mCredential = GoogleAccountCredential.usingOAuth2(
                 getApplicationContext(), Arrays.asList(SCOPES))
                 .setBackOff(new ExponentialBackOff());
-        getResultsFromApi();
+        new LookupTask(getSearchCache(getApplicationContext())).execute();
+
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A search nobody waits for any more.
+        if (mRequestTask != null) {
+            mRequestTask.cancel(true);
+        }
+    }
 
+    /**
+     * Hand the first page of results to the activity that started the search, in the result
+     * intent rather than in shared state, so a search that was given up on can't overwrite the
+     * results of the next one.
+     */
+    private void deliverResults(List<SearchResultCache.Result> results, String nextPageToken) {
+        String genre = (this.genre == null)
+                ? YoutubeSearchSession.getSearchGenre(query) : this.genre;
+        Intent data = new Intent();
+        data.putParcelableArrayListExtra(EXTRA_TRACKS, new ArrayList<>(
+                YoutubeSearchSession.buildTracks(query, genre, results)));
+        data.putExtra(EXTRA_NEXT_PAGE_TOKEN, nextPageToken);
+        setResult(1, data);
+        finish();
     }
 
     private void getResultsFromApi() {
@@ -90,7 +140,9 @@ public class YoutubeAPIActivity extends Activity
         } else if (! isDeviceOnline()) {
 //            mOutputText.setText("No network connection available.");
         } else {
-            new MakeRequestTask(mCredential).execute();
+            mRequestTask = new MakeRequestTask(
+                    new YoutubeSearchSession(mCredential, query, genre), false);
+            mRequestTask.execute();
         }
     }
 
@@ -98,7 +150,7 @@ public class YoutubeAPIActivity extends Activity
     private void chooseAccount() {
         if (EasyPermissions.hasPermissions(
                 this, Manifest.permission.GET_ACCOUNTS)) {
-            String accountName = getPreferences(Context.MODE_PRIVATE)
+            String accountName = getAccountPreferences(this)
                     .getString(PREF_ACCOUNT_NAME, null);
             if (accountName != null) {
                 mCredential.setSelectedAccountName(accountName);
@@ -147,7 +199,7 @@ public class YoutubeAPIActivity extends Activity
                             data.getStringExtra(AccountManager.KEY_ACCOUNT_NAME);
                     if (accountName != null) {
                         SharedPreferences settings =
-                                getPreferences(Context.MODE_PRIVATE);
+                                getAccountPreferences(this);
                         SharedPreferences.Editor editor = settings.edit();
                         editor.putString(PREF_ACCOUNT_NAME, accountName);
                         editor.apply();
@@ -260,22 +312,55 @@ public class YoutubeAPIActivity extends Activity
     }
 
 
+    /**
+     * Look the query up in the search cache, off the main thread as the cache may have to be
+     * read from disk. Cached results are shown at once, and fetched again in the background if
+     * they are stale; only a miss waits for the API.
+     */
+    private class LookupTask extends AsyncTask<Void, Void, SearchResultCache.Entry> {
+        private final SearchResultCache mCache;
+
+        LookupTask(SearchResultCache cache) {
+            mCache = cache;
+        }
+
+        @Override
+        protected SearchResultCache.Entry doInBackground(Void... params) {
+            return mCache.get(query);
+        }
+
+        @Override
+        protected void onPostExecute(SearchResultCache.Entry entry) {
+            if (entry == null) {
+                getResultsFromApi();
+                return;
+            }
+            LogHelper.d(TAG, "Cached results for ", query, ", fresh=", entry.isFresh());
+            if (!entry.isFresh() && isDeviceOnline()) {
+                YoutubeSearchSession session =
+                        openSessionIfAuthorized(getApplicationContext(), query, genre);
+                if (session != null) {
+                    // Fetch the query again for the cache only: the stale results are shown.
+                    new MakeRequestTask(session, true).execute();
+                }
+            }
+            deliverResults(entry.results, entry.nextPageToken);
+        }
+    }
+
     /**
      * An asynchronous task that handles the YouTube Data API call.
      * Placing the API calls in their own task ensures the UI stays responsive.
      */
-    private class MakeRequestTask extends AsyncTask<Void, Void, List<Video>> {
-        private com.google.api.services.youtube.YouTube mService = null;
+    private class MakeRequestTask extends AsyncTask<Void, Void, YoutubeSearchSession.Page> {
+        private final YoutubeSearchSession mSession;
         private Exception mLastError = null;
-        private int countsOfDone = 0;
-
-        MakeRequestTask(GoogleAccountCredential credential) {
-            HttpTransport transport = AndroidHttp.newCompatibleTransport();
-            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-            mService = new com.google.api.services.youtube.YouTube.Builder(
-                    transport, jsonFactory, credential)
-                    .setApplicationName("YouTube Data API Android Quickstart")
-                    .build();
+        // Only refresh the cache, the activity already showed cached results.
+        private final boolean mRevalidate;
+
+        MakeRequestTask(YoutubeSearchSession session, boolean revalidate) {
+            mSession = session;
+            mRevalidate = revalidate;
         }
 
         /**
@@ -283,10 +368,13 @@ public class YoutubeAPIActivity extends Activity
          * @param params no parameters needed for this task.
          */
         @Override
-        protected List<Video> doInBackground(Void... params) {
-            Log.d("Kangtle", "do in background");
+        protected YoutubeSearchSession.Page doInBackground(Void... params) {
+            LogHelper.d(TAG, "Searching for ", query);
             try {
-                return getDataFromApi();
+                YoutubeSearchSession.Page page = mSession.fetchPage(null);
+                getSearchCache(getApplicationContext())
+                        .put(query, page.results, page.nextPageToken);
+                return page;
             } catch (Exception e) {
                 mLastError = e;
                 cancel(true);
@@ -294,88 +382,29 @@ public class YoutubeAPIActivity extends Activity
             }
         }
 
-        /**
-         * Fetch information about the "GoogleDevelopers" YouTube channel.
-         * @return List of Strings containing information about the channel.
-         * @throws IOException
-         */
-        private List<Video> getDataFromApi() throws IOException {
-            // Get a list of up to 10 files.
-            Log.d("Kangtle", "get data from api");
-
-            YouTube.Search.List searchList =  mService.search().list("snippet");
-            searchList.setPart("snippet");
-            searchList.setQ(query);
-            searchList.setVideoCategoryId("10");
-            searchList.setMaxResults(SEARCH_MAX_RESULTS_NUM);
-            searchList.setType("video");
-            searchList.setFields("items(id/kind,id/videoId)");
-            SearchListResponse searchResponse = searchList.execute();
-
-            StringBuilder ids = new StringBuilder();
-            for (SearchResult searchResult: searchResponse.getItems()) {
-                ids.append(searchResult.getId().getVideoId());
-                ids.append(",");
-            }
-
-            HashMap<String, String> parameters = new HashMap<>();
-            parameters.put("part", "snippet,contentDetails,statistics");
-            parameters.put("id", ids.toString());
-
-            YouTube.Videos.List videosListMultipleIdsRequest = mService.videos().list(parameters.get("part"));
-            if (parameters.containsKey("id") && parameters.get("id") != "") {
-                videosListMultipleIdsRequest.setId(parameters.get("id"));
-            }
-
-            VideoListResponse response = videosListMultipleIdsRequest.execute();
-            return response.getItems();
-        }
-
-        private MediaMetadataCompat buildFromSearchResult(final Video searchResult) {
-            final String title = searchResult.getSnippet().getTitle();
-            final String album = query;
-            final String genre = (YoutubeAPIActivity.this.genre == null)?"Search_" + query:YoutubeAPIActivity.this.genre;
-            final String source = searchResult.getId();
-            final int duration = MyHelper.getSecondsFromISO(searchResult.getContentDetails().getDuration()) * 1000; // ms
-
-            // the music source. In a real world app, this could come from the server.
-            final String id = String.valueOf((genre+source).hashCode());
-
-            return new MediaMetadataCompat.Builder()
-                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
-                    .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, "https://youtu.be/" + searchResult.getId())
-                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
-                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
-                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                    .build();
-        }
-
         @Override
         protected void onPreExecute() {
-//            mOutputText.setText("");
-            Log.d("Kangtle", "show progress");
-            mProgress.show();
+            if (mRevalidate) {
+                return;
+            }
+            Toast.makeText(getApplicationContext(), "Searching musics ...", Toast.LENGTH_SHORT)
+                    .show();
         }
 
         @Override
-        protected void onPostExecute(List<Video> output) {
-            Log.d("Kangtle", "hide progress");
-
-            for (Video searchResult:output) {
-                MediaMetadataCompat item = buildFromSearchResult(searchResult);
-                String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-                searchResults.put(musicId, new MutableMediaMetadata(musicId, item));
+        protected void onPostExecute(YoutubeSearchSession.Page page) {
+            if (mRevalidate) {
+                return;
             }
-
-            mProgress.hide();
-            setResult(1);
-            finish();
+            deliverResults(page.results, page.nextPageToken);
         }
 
         @Override
         protected void onCancelled() {
-            mProgress.hide();
+            if (mRevalidate) {
+                LogHelper.w(TAG, mLastError, "Could not refresh cached results for ", query);
+                return;
+            }
             if (mLastError != null) {
                 if (mLastError instanceof GooglePlayServicesAvailabilityIOException) {
                     showGooglePlayServicesAvailabilityErrorDialog(
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.MyHelper;
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.Video;
+import com.google.api.services.youtube.model.VideoListResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A YouTube search, a page of results at a time, following the next page token of each.
+ *
+ * The first page is either fetched by whoever starts the search, see {@link #fetchPage}, or
+ * loaded in the background by {@link #loadFirstPage}; later pages are loaded in the background
+ * by {@link #loadNextPage()}. Pages loaded in the background are added to the search genre of
+ * the catalog as they arrive, which the music service passes on to the lists showing it. One
+ * page is loaded at a time: asking for another while it is on its way does nothing. All
+ * sessions load on the same thread, and {@link #close()} stops the load of a session that
+ * was superseded, so no more than one search is ever on the network: it disconnects the
+ * responses being read, since interrupting a thread doesn't stop its socket I/O, and no
+ * videos.list batch is sent after it. Nor is a page added to the catalog after it: whether
+ * the session is closed is checked with the catalog locked, so a caller removing the search
+ * genre once close() returns never sees it come back.
+ */
+public class YoutubeSearchSession {
+
+    private static final String TAG = LogHelper.makeLogTag(YoutubeSearchSession.class);
+
+    public static final long PAGE_SIZE = 45L;
+
+    // videos.list takes up to 50 IDs; smaller batches let the first ones go out earlier.
+    private static final int VIDEOS_BATCH_SIZE = 15;
+    private static final int MAX_PARALLEL_BATCHES = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final ThreadPoolExecutor sBatchExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_BATCHES, MAX_PARALLEL_BATCHES, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final ExecutorService sDisconnectExecutor = Executors.newCachedThreadPool();
+
+    static {
+        sBatchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static class Page {
+        public final List<SearchResultCache.Result> results;
+        // Null on the last page.
+        public final String nextPageToken;
+
+        Page(List<SearchResultCache.Result> results, String nextPageToken) {
+            this.results = results;
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
+    /**
+     * Told, on the loading thread, of each page added to the catalog.
+     */
+    public interface Listener {
+        void onPageLoaded(YoutubeSearchSession session, int added);
+    }
+
+    /**
+     * Where pages loaded in the background go: {@link MusicProvider}, or a fake in tests.
+     */
+    interface Catalog {
+        int addTracks(List<MediaMetadataCompat> tracks, MusicProvider.Cancellation cancellation);
+    }
+
+    private static final Catalog MUSIC_PROVIDER = new Catalog() {
+        @Override
+        public int addTracks(List<MediaMetadataCompat> tracks,
+                             MusicProvider.Cancellation cancellation) {
+            return MusicProvider.addTracks(tracks, cancellation);
+        }
+    };
+
+    private final YouTube mService;
+    private final String mQuery;
+    private final String mGenre;
+    private final Catalog mCatalog;
+    private final MusicProvider.Cancellation mCancellation = new MusicProvider.Cancellation() {
+        @Override
+        public boolean isCancelled() {
+            return isClosed();
+        }
+    };
+
+    // Guarded by this session.
+    private String mNextPageToken;
+    private Future<?> mLoading;
+    // The responses being read, for close() to disconnect.
+    private final Set<HttpResponse> mResponses = new HashSet<>();
+    private boolean mClosed;
+    private boolean mStarted;
+    private volatile Listener mListener;
+
+    /**
+     * @param genre the genre of the tracks found, or null for the query's own search genre.
+     */
+    public YoutubeSearchSession(GoogleAccountCredential credential, String query, String genre) {
+        this(new YouTube.Builder(
+                AndroidHttp.newCompatibleTransport(), JacksonFactory.getDefaultInstance(),
+                credential)
+                .setApplicationName("YouTube Data API Android Quickstart")
+                .build(), query, genre);
+    }
+
+    // Tests point the service at a local endpoint.
+    YoutubeSearchSession(YouTube service, String query, String genre) {
+        this(service, query, genre, MUSIC_PROVIDER);
+    }
+
+    YoutubeSearchSession(YouTube service, String query, String genre, Catalog catalog) {
+        mService = service;
+        mQuery = query;
+        mGenre = genre == null ? getSearchGenre(query) : genre;
+        mCatalog = catalog;
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    public String getGenre() {
+        return mGenre;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Fetch one page of results, blocking.
+     *
+     * The video IDs are read off the search.list response as it downloads, and every
+     * {@link #VIDEOS_BATCH_SIZE} of them are sent to videos.list right away, on the batch
+     * pool: the metadata round trips overlap each other and the rest of the search response.
+     * Both calls ask only for the fields a track is built from.
+     *
+     * @param pageToken the token of the page, or null for the first one.
+     */
+    Page fetchPage(String pageToken) throws IOException {
+        YouTube.Search.List searchList = mService.search().list("id");
+        searchList.setQ(mQuery);
+        searchList.setVideoCategoryId("10");
+        searchList.setMaxResults(PAGE_SIZE);
+        searchList.setType("video");
+        searchList.setFields("nextPageToken,items/id/videoId");
+        if (pageToken != null) {
+            searchList.setPageToken(pageToken);
+        }
+
+        List<Future<List<SearchResultCache.Result>>> batches = new ArrayList<>();
+        boolean done = false;
+        try {
+            String nextPageToken = readSearchResponse(open(searchList), batches);
+            List<SearchResultCache.Result> results = new ArrayList<>();
+            for (Future<List<SearchResultCache.Result>> batch : batches) {
+                results.addAll(batch.get());
+            }
+            done = true;
+            return new Page(results, nextPageToken);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Search interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (!done) {
+                for (Future<List<SearchResultCache.Result>> batch : batches) {
+                    batch.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a search.list response, submitting a videos.list batch for each
+     * {@link #VIDEOS_BATCH_SIZE} video IDs, and one for the IDs left at the end.
+     *
+     * @return the next page token, or null.
+     */
+    private String readSearchResponse(HttpResponse response,
+            List<Future<List<SearchResultCache.Result>>> batches) throws IOException {
+        String nextPageToken = null;
+        List<String> videoIds = new ArrayList<>(VIDEOS_BATCH_SIZE);
+        JsonParser parser = null;
+        try {
+            parser = JacksonFactory.getDefaultInstance().createJsonParser(
+                    response.getContent(), response.getContentCharset());
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected search response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("nextPageToken".equals(field)) {
+                    nextPageToken = parser.getText();
+                } else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String videoId = readVideoId(parser);
+                        if (videoId == null) {
+                            continue;
+                        }
+                        videoIds.add(videoId);
+                        if (videoIds.size() == VIDEOS_BATCH_SIZE) {
+                            batches.add(submitVideosBatch(videoIds));
+                            videoIds = new ArrayList<>(VIDEOS_BATCH_SIZE);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+            release(response);
+        }
+        if (!videoIds.isEmpty()) {
+            batches.add(submitVideosBatch(videoIds));
+        }
+        return nextPageToken;
+    }
+
+    /**
+     * Read one search result, from its START_OBJECT to its END_OBJECT.
+     *
+     * @return its video ID, or null if it has none.
+     */
+    private static String readVideoId(JsonParser parser) throws IOException {
+        String videoId = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("id".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String idField = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("videoId".equals(idField)) {
+                        videoId = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return videoId;
+    }
+
+    private Future<List<SearchResultCache.Result>> submitVideosBatch(final List<String> videoIds)
+            throws IOException {
+        checkNotClosed();
+        return sBatchExecutor.submit(new Callable<List<SearchResultCache.Result>>() {
+            @Override
+            public List<SearchResultCache.Result> call() throws IOException {
+                // The batch may have waited for a thread until after the session was closed.
+                checkNotClosed();
+                return fetchVideos(videoIds);
+            }
+        });
+    }
+
+    /**
+     * @return the title and duration of the videos, in the order videos.list returns them.
+     */
+    private List<SearchResultCache.Result> fetchVideos(List<String> videoIds) throws IOException {
+        StringBuilder ids = new StringBuilder();
+        for (String videoId : videoIds) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(videoId);
+        }
+        YouTube.Videos.List videosList = mService.videos().list("snippet,contentDetails");
+        videosList.setId(ids.toString());
+        videosList.setFields("items(id,snippet/title,contentDetails/duration)");
+        HttpResponse response = open(videosList);
+        List<Video> videos;
+        try {
+            videos = response.parseAs(VideoListResponse.class).getItems();
+        } finally {
+            release(response);
+        }
+        if (videos == null) {
+            return Collections.emptyList();
+        }
+        List<SearchResultCache.Result> results = new ArrayList<>(videos.size());
+        for (Video video : videos) {
+            results.add(new SearchResultCache.Result(video.getId(),
+                    video.getSnippet().getTitle(),
+                    MyHelper.getSecondsFromISO(
+                            video.getContentDetails().getDuration()) * 1000L)); // ms
+        }
+        return results;
+    }
+
+    /**
+     * Send the request, and keep its response for {@link #close()} to disconnect until it is
+     * released.
+     */
+    private HttpResponse open(AbstractGoogleClientRequest<?> request) throws IOException {
+        HttpResponse response = request.executeUnparsed();
+        synchronized (this) {
+            if (!mClosed) {
+                mResponses.add(response);
+                return response;
+            }
+        }
+        disconnectQuietly(response);
+        throw new InterruptedIOException("Search closed");
+    }
+
+    private void release(HttpResponse response) {
+        synchronized (this) {
+            mResponses.remove(response);
+        }
+        disconnectQuietly(response);
+    }
+
+    private synchronized void checkNotClosed() throws InterruptedIOException {
+        if (mClosed) {
+            throw new InterruptedIOException("Search closed");
+        }
+    }
+
+    private static void disconnectQuietly(HttpResponse response) {
+        try {
+            response.disconnect();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return the genre the tracks found for the query go to, unless the search has its own.
+     */
+    public static String getSearchGenre(String query) {
+        return "Search_" + query;
+    }
+
+    /**
+     * @return the tracks of the results found for the query, in the given genre.
+     */
+    public static List<MediaMetadataCompat> buildTracks(String query, String genre,
+            List<SearchResultCache.Result> results) {
+        List<MediaMetadataCompat> tracks = new ArrayList<>(results.size());
+        for (SearchResultCache.Result result : results) {
+            String source = "https://youtu.be/" + result.videoId;
+            // Same ID as the track will have once saved to the local catalog.
+            String id = TrackIdHelper.createTrackId(genre, source);
+            tracks.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
+                    .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, source)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, query)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, result.duration)
+                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, result.title)
+                    .build());
+        }
+        return tracks;
+    }
+
+    /**
+     * Go on from the page with the given token, the first page having been fetched already;
+     * null if it was the last page.
+     */
+    public synchronized void setNextPageToken(String nextPageToken) {
+        mStarted = true;
+        mNextPageToken = nextPageToken;
+    }
+
+    /**
+     * Start loading the first page in the background: from the cache if it has an entry for
+     * the query, else from the API, caching it. A stale entry is served all the same, and the
+     * query fetched again afterwards to refresh the cache, like {@link YoutubeAPIActivity}
+     * does.
+     */
+    public synchronized void loadFirstPage(SearchResultCache cache) {
+        if (mClosed || mLoading != null || mStarted) {
+            return;
+        }
+        load(null, cache);
+    }
+
+    /**
+     * Start loading the next page in the background, unless it is already loading or there is
+     * none.
+     */
+    public synchronized void loadNextPage() {
+        if (mClosed || mLoading != null || !mStarted || mNextPageToken == null) {
+            return;
+        }
+        load(mNextPageToken, null);
+    }
+
+    // Called with the session locked. Only the first page is looked up and cached.
+    private void load(final String pageToken, final SearchResultCache cache) {
+        mLoading = sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Page page = null;
+                try {
+                    SearchResultCache.Entry entry = cache == null ? null : cache.get(mQuery);
+                    if (entry != null) {
+                        page = new Page(entry.results, entry.nextPageToken);
+                        if (!entry.isFresh()) {
+                            revalidate(cache);
+                        }
+                    } else {
+                        page = fetchPage(pageToken);
+                        if (cache != null) {
+                            cache.put(mQuery, page.results, page.nextPageToken);
+                        }
+                    }
+                } catch (IOException e) {
+                    // A response disconnected by close() fails like any other.
+                    if (e instanceof InterruptedIOException || isClosed()) {
+                        LogHelper.d(TAG, "Stopped loading results for ", mQuery);
+                    } else {
+                        LogHelper.e(TAG, e, "Could not load results for ", mQuery);
+                    }
+                }
+                synchronized (YoutubeSearchSession.this) {
+                    mLoading = null;
+                    if (mClosed || page == null) {
+                        return;
+                    }
+                    mStarted = true;
+                    mNextPageToken = page.nextPageToken;
+                }
+                List<MediaMetadataCompat> tracks = buildTracks(mQuery, mGenre, page.results);
+                // Added without the session locked, so close() never waits on the catalog;
+                // the catalog drops the page if the session is closed by the time it is
+                // locked.
+                int added = mCatalog.addTracks(tracks, mCancellation);
+                if (added == 0 && isClosed()) {
+                    return;
+                }
+                LogHelper.d(TAG, "Added ", added, " results for ", mQuery);
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onPageLoaded(YoutubeSearchSession.this, added);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetch the first page again after the current load, for the cache only: the stale
+     * results are the ones shown.
+     */
+    private void revalidate(final SearchResultCache cache) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed()) {
+                    return;
+                }
+                try {
+                    Page page = fetchPage(null);
+                    cache.put(mQuery, page.results, page.nextPageToken);
+                    LogHelper.d(TAG, "Refreshed cached results for ", mQuery);
+                } catch (IOException e) {
+                    if (e instanceof InterruptedIOException || isClosed()) {
+                        LogHelper.d(TAG, "Stopped refreshing results for ", mQuery);
+                    } else {
+                        LogHelper.w(TAG, e, "Could not refresh cached results for ", mQuery);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Stop loading pages; the session can't be used after this.
+     */
+    public void close() {
+        List<HttpResponse> responses;
+        synchronized (this) {
+            mClosed = true;
+            if (mLoading != null) {
+                mLoading.cancel(true);
+                mLoading = null;
+            }
+            responses = new ArrayList<>(mResponses);
+            mResponses.clear();
+        }
+        for (final HttpResponse response : responses) {
+            // Off the caller's thread: disconnecting may wait for the read it aborts.
+            sDisconnectExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectQuietly(response);
+                }
+            });
+        }
+    }
+}
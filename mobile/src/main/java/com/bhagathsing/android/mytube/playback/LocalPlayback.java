@@ -57,6 +57,7 @@ import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
 
+import java.io.File;
 import java.io.IOException;
 
 import at.huber.youtubeExtractor.VideoMeta;
@@ -88,6 +89,12 @@ public final class LocalPlayback implements Playback {
     // we have full audio focus
     private static final int AUDIO_FOCUSED = 2;
 
+    private static final String YOUTUBE_SOURCE_PREFIX = "https://youtu.be/";
+    private static final String STREAM_URLS_FILE = "stream_urls.txt";
+
+    // Shared by every LocalPlayback, as the app switches to and from casting.
+    private static StreamUrlCache sStreamUrls;
+
     private final Context mContext;
     private final WifiManager.WifiLock mWifiLock;
     private boolean mPlayOnFocusGain;
@@ -96,6 +103,9 @@ public final class LocalPlayback implements Playback {
     private boolean mAudioNoisyReceiverRegistered;
     private String mCurrentMediaId;
 
+    // The video whose stream URL came from the cache, while it is the one prepared.
+    private String mCachedVideoId;
+
     private int mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
     private final AudioManager mAudioManager;
     private SimpleExoPlayer mExoPlayer;
@@ -134,6 +144,8 @@ public final class LocalPlayback implements Playback {
         this.mWifiLock =
                 ((WifiManager) applicationContext.getSystemService(Context.WIFI_SERVICE))
                         .createWifiLock(WifiManager.WIFI_MODE_FULL, "uAmp_lock");
+        // Start reading the stream URLs now, so they are in memory by the first play.
+        getStreamUrlCache(applicationContext);
     }
 
     @Override
@@ -196,7 +208,6 @@ public final class LocalPlayback implements Playback {
         // Nothing to do. Position maintained by ExoPlayer.
     }
 
-    @SuppressLint("StaticFieldLeak")
     @Override
     public void play(QueueItem item) {
         mPlayOnFocusGain = true;
@@ -239,62 +250,11 @@ public final class LocalPlayback implements Playback {
                     .build();
             mExoPlayer.setAudioAttributes(audioAttributes);
 
-            // Produces DataSource instances through which media data is loaded.
-            final DataSource.Factory dataSourceFactory =
-                    new DefaultDataSourceFactory(
-                            mContext, Util.getUserAgent(mContext, "mytube"), null);
-            // Produces Extractor instances for parsing the media data.
-            final ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
-            // The MediaSource represents the media to be played.
-//            MediaSource mediaSource =
-//                    new ExtractorMediaSource(
-//                            Uri.parse(source), dataSourceFactory, extractorsFactory, null, null);
-//
-//            // Prepares media to play (happens on background thread) and triggers
-//            // {@code onPlayerStateChanged} callback when the stream is ready to play.
-//            mExoPlayer.prepare(mediaSource);
-
-            if (source.startsWith("https://youtu.be/")){
-                //Kangtle- From Youtube
-                mExoPlayer.stop();
-                new YouTubeExtractor(MyApplication.getAppContext()) {
-                    @Override
-                    public void onExtractionComplete(SparseArray<YtFile> ytFiles, VideoMeta vMeta) {
-                        Log.d("Kangtle", "onExtractionComplete");
-                        if (ytFiles != null) {
-                            String downloadUrl = "";
-                            for (int i = 0, itag; i < ytFiles.size(); i++) {
-                                itag = ytFiles.keyAt(i);
-                                // ytFile represents one file with its url and meta data
-                                YtFile ytFile = ytFiles.get(itag);
-
-                                // Just add videos in a decent format => height -1 = audio
-                                if (ytFile.getFormat() != null && ytFile.getFormat().getHeight() == -1) {
-                                    downloadUrl = ytFile.getUrl();
-                                }
-                            }
-                            Log.d("Kangtle", "downloadUrl " + downloadUrl);
-
-                            MediaSource mediaSource =
-                                    new ExtractorMediaSource(
-                                            Uri.parse(downloadUrl), dataSourceFactory, extractorsFactory, null, null);
-
-                            // Prepares media to play (happens on background thread) and triggers
-                            // {@code onPlayerStateChanged} callback when the stream is ready to play.
-                            mExoPlayer.prepare(mediaSource);
-                        }else{
-                            Log.d("Kangtle", "ytFiles is null");
-                        }
-                    }
-                }.extract(source, true, false);
-            }else{
-                MediaSource mediaSource =
-                        new ExtractorMediaSource(
-                                Uri.parse(source), dataSourceFactory, extractorsFactory, null, null);
-
-                // Prepares media to play (happens on background thread) and triggers
-                // {@code onPlayerStateChanged} callback when the stream is ready to play.
-                mExoPlayer.prepare(mediaSource);
+            if (source.startsWith(YOUTUBE_SOURCE_PREFIX)) {
+                prepareYoutube(source.substring(YOUTUBE_SOURCE_PREFIX.length()));
+            } else {
+                mCachedVideoId = null;
+                prepare(source);
             }
 
             // If we are streaming from the internet, we want to hold a
@@ -306,6 +266,79 @@ public final class LocalPlayback implements Playback {
         configurePlayerState();
     }
 
+    /**
+     * Prepare the audio stream of the video, from the cache if it was resolved lately.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private void prepareYoutube(final String videoId) {
+        final StreamUrlCache streamUrls = getStreamUrlCache(mContext);
+        String cachedUrl = streamUrls.get(videoId);
+        if (cachedUrl != null) {
+            LogHelper.d(TAG, "Stream URL of ", videoId, " found in cache");
+            mCachedVideoId = videoId;
+            prepare(cachedUrl);
+            return;
+        }
+        mCachedVideoId = null;
+        //Kangtle- From Youtube
+        mExoPlayer.stop();
+        final String mediaId = mCurrentMediaId;
+        new YouTubeExtractor(MyApplication.getAppContext()) {
+            @Override
+            public void onExtractionComplete(SparseArray<YtFile> ytFiles, VideoMeta vMeta) {
+                Log.d("Kangtle", "onExtractionComplete");
+                if (ytFiles != null) {
+                    String downloadUrl = "";
+                    for (int i = 0, itag; i < ytFiles.size(); i++) {
+                        itag = ytFiles.keyAt(i);
+                        // ytFile represents one file with its url and meta data
+                        YtFile ytFile = ytFiles.get(itag);
+
+                        // Just add videos in a decent format => height -1 = audio
+                        if (ytFile.getFormat() != null && ytFile.getFormat().getHeight() == -1) {
+                            downloadUrl = ytFile.getUrl();
+                        }
+                    }
+                    Log.d("Kangtle", "downloadUrl " + downloadUrl);
+                    if (!downloadUrl.isEmpty()) {
+                        streamUrls.put(videoId, downloadUrl);
+                    }
+
+                    // Another track may have been started while this one was extracted.
+                    if (mExoPlayer != null && TextUtils.equals(mediaId, mCurrentMediaId)) {
+                        prepare(downloadUrl);
+                    }
+                }else{
+                    Log.d("Kangtle", "ytFiles is null");
+                }
+            }
+        }.extract(YOUTUBE_SOURCE_PREFIX + videoId, true, false);
+    }
+
+    private void prepare(String url) {
+        // Produces DataSource instances through which media data is loaded.
+        DataSource.Factory dataSourceFactory =
+                new DefaultDataSourceFactory(
+                        mContext, Util.getUserAgent(mContext, "mytube"), null);
+        // Produces Extractor instances for parsing the media data.
+        ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
+        // The MediaSource represents the media to be played.
+        MediaSource mediaSource =
+                new ExtractorMediaSource(
+                        Uri.parse(url), dataSourceFactory, extractorsFactory, null, null);
+
+        // Prepares media to play (happens on background thread) and triggers
+        // {@code onPlayerStateChanged} callback when the stream is ready to play.
+        mExoPlayer.prepare(mediaSource);
+    }
+
+    private static synchronized StreamUrlCache getStreamUrlCache(Context context) {
+        if (sStreamUrls == null) {
+            sStreamUrls = new StreamUrlCache(new File(context.getCacheDir(), STREAM_URLS_FILE));
+        }
+        return sStreamUrls;
+    }
+
     @Override
     public void pause() {
         // Pause player and cancel the 'foreground service' state.
@@ -516,6 +549,15 @@ public final class LocalPlayback implements Playback {
             }
 
             LogHelper.e(TAG, "ExoPlayer error: what=" + what);
+            if (error.type == ExoPlaybackException.TYPE_SOURCE && mCachedVideoId != null
+                    && mExoPlayer != null) {
+                // The cached URL may have been revoked or bound to another network: resolve
+                // the stream again, once.
+                String videoId = mCachedVideoId;
+                getStreamUrlCache(mContext).remove(videoId);
+                prepareYoutube(videoId);
+                return;
+            }
             if (mCallback != null) {
                 mCallback.onError("ExoPlayer error " + what);
             }
@@ -75,6 +75,10 @@ public class PlaybackManager implements Playback.Callback {
         if (currentMusic != null) {
             mServiceCallback.onPlaybackStart();
             mPlayback.play(currentMusic);
+            String mediaId = currentMusic.getDescription().getMediaId();
+            if (mediaId != null) {
+                mMusicProvider.setPlayed(MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+            }
         }
     }
 
@@ -158,10 +162,10 @@ public class PlaybackManager implements Playback.Callback {
             return;
         }
         String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-        int favoriteIcon = mMusicProvider.isFavorite(musicId) ?
-                R.drawable.ic_star_on : R.drawable.ic_star_off;
+        boolean favorite = mMusicProvider.isFavorite(musicId);
+        int favoriteIcon = favorite ? R.drawable.ic_star_on : R.drawable.ic_star_off;
         LogHelper.d(TAG, "updatePlaybackState, setting Favorite custom action of music ",
-                musicId, " current favorite=", mMusicProvider.isFavorite(musicId));
+                musicId, " current favorite=", favorite);
         Bundle customActionExtras = new Bundle();
         WearHelper.setShowCustomActionOnWear(customActionExtras, true);
         stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.playback;
+
+import android.net.Uri;
+
+import com.bhagathsing.android.mytube.utils.FileHelper;
+import com.bhagathsing.android.mytube.utils.LogHelper;
+import com.bhagathsing.android.mytube.utils.WriteBehind;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream URLs resolved from YouTube videos, by video ID, so a track played again starts
+ * without running the extractor.
+ *
+ * A stream URL carries the time it stops working in its expire parameter; an entry is dropped
+ * {@link #EXPIRY_MARGIN_MS} before that, so a track started from the cache can still be
+ * buffered to the end. URLs without an expire parameter are not cached. The least recently
+ * used entries are dropped once there are more than {@link #MAX_ENTRIES}.
+ *
+ * The whole cache is one file of one JSON entry per line, least recently used first. It is
+ * read in the background as soon as the cache is created, without the cache locked, and
+ * swapped in once read: {@link #get} and {@link #put} never touch or wait for the disk, so
+ * both are safe on the main thread, and {@link #get} misses until the file is read. Writes are
+ * write-behind like the search result cache.
+ */
+class StreamUrlCache {
+
+    private static final String TAG = LogHelper.makeLogTag(StreamUrlCache.class);
+
+    static final long EXPIRY_MARGIN_MS = TimeUnit.MINUTES.toMillis(30);
+    static final int MAX_ENTRIES = 500;
+
+
+    private static final String PARAM_EXPIRE = "expire";
+
+    private static final String KEY_VIDEO_ID = "id";
+    private static final String KEY_URL = "url";
+    private static final String KEY_EXPIRES = "expires";
+
+    private static class Entry {
+        final String url;
+        // When the entry is dropped, in ms.
+        final long expires;
+
+        Entry(String url, long expires) {
+            this.url = url;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+
+    private final File mFile;
+    private final WriteBehind mWriteBehind = new WriteBehind(new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    });
+    // Held while writing the file, so an older cache never lands after a newer one.
+    private final Object mWriteLock = new Object();
+
+    // Guarded by this cache, least recently used first.
+    private LinkedHashMap<String, Entry> mEntries = newEntries();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    StreamUrlCache(File file) {
+        mFile = file;
+        mWriteBehind.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return the stream URL of the video if it is still good to play, or null.
+     */
+    synchronized String get(String videoId) {
+        Entry entry = mEntries.get(videoId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            mEntries.remove(videoId);
+            setDirty();
+            return null;
+        }
+        return entry.url;
+    }
+
+    /**
+     * Cache the stream URL just resolved for the video, unless it has no usable expiry.
+     */
+    synchronized void put(String videoId, String url) {
+        long expires = getExpiry(url);
+        if (expires <= System.currentTimeMillis()) {
+            return;
+        }
+        mEntries.remove(videoId);
+        mEntries.put(videoId, new Entry(url, expires));
+        trim();
+        setDirty();
+    }
+
+    /**
+     * Drop the stream URL of the video, for one that failed to play.
+     */
+    synchronized void remove(String videoId) {
+        if (mEntries.remove(videoId) != null) {
+            setDirty();
+        }
+    }
+
+    /**
+     * Write pending changes to disk before returning.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            // Never replace the file with the changes only.
+            load();
+            List<JSONObject> records = new ArrayList<>();
+            synchronized (this) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                try {
+                    for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                        records.add(toJson(entry.getKey(), entry.getValue()));
+                    }
+                } catch (JSONException e) {
+                    LogHelper.e(TAG, e, "Could not serialize stream URLs");
+                    return;
+                }
+            }
+            write(records);
+        }
+    }
+
+    // Called without the cache locked: the file is read into a map of its own, swapped in.
+    private void load() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        LinkedHashMap<String, Entry> entries = newEntries();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), FileHelper.CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String key = record.getString(KEY_VIDEO_ID);
+                    entries.remove(key);
+                    entries.put(key, new Entry(record.getString(KEY_URL),
+                            record.getLong(KEY_EXPIRES)));
+                } catch (JSONException e) {
+                    LogHelper.w(TAG, "Skipping unreadable stream URL: ", line);
+                }
+            }
+            LogHelper.d(TAG, "Loaded stream URLs of ", entries.size(), " videos");
+        } catch (FileNotFoundException e) {
+            // Nothing played yet.
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read stream URLs");
+        } finally {
+            FileHelper.closeQuietly(reader);
+        }
+        synchronized (this) {
+            // Loaded meanwhile by a flush.
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+            // Entries put before the file was read are newer than the file: keep them last.
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                entries.remove(entry.getKey());
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            mEntries = entries;
+            if (trim()) {
+                setDirty();
+            }
+        }
+    }
+
+    // Called with the cache locked.
+    private boolean trim() {
+        boolean trimmed = false;
+        int size = mEntries.size();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (size > MAX_ENTRIES || entry.isExpired()) {
+                it.remove();
+                size--;
+                trimmed = true;
+            }
+        }
+        return trimmed;
+    }
+
+    // Called with the cache locked.
+    private void setDirty() {
+        mDirty = true;
+        mWriteBehind.schedule();
+    }
+
+    private void write(List<JSONObject> records) {
+        try {
+            FileHelper.replaceLines(mFile, records);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write stream URLs");
+        }
+    }
+
+    /**
+     * @return when the entry of the URL is dropped, in ms, or 0 if the URL has no expiry.
+     */
+    private static long getExpiry(String url) {
+        String expire = Uri.parse(url).getQueryParameter(PARAM_EXPIRE);
+        if (expire == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(expire)) - EXPIRY_MARGIN_MS;
+        } catch (NumberFormatException e) {
+            LogHelper.w(TAG, "Unreadable stream URL expiry: ", expire);
+            return 0;
+        }
+    }
+
+    private static LinkedHashMap<String, Entry> newEntries() {
+        return new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private static JSONObject toJson(String key, Entry entry) throws JSONException {
+        return new JSONObject()
+                .put(KEY_VIDEO_ID, key)
+                .put(KEY_URL, entry.url)
+                .put(KEY_EXPIRES, entry.expires);
+    }
+}
@@ -37,12 +37,15 @@ import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v7.app.AlertDialog;
 import android.text.InputType;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
@@ -80,12 +83,19 @@ public class MediaBrowserFragment extends Fragment {
     private static final String TAG = LogHelper.makeLogTag(MediaBrowserFragment.class);
 
     private static final String ARG_MEDIA_ID = "media_id";
+    // Children are asked a page at a time, the next page when the list is scrolled close
+    // enough to the end of the loaded ones.
+    private static final int PAGE_SIZE = 50;
+    private static final int PAGE_PRELOAD_ITEMS = 10;
 
     private BrowseAdapter mBrowserAdapter;
     private String mMediaId;
     private MediaFragmentListener mMediaFragmentListener;
     private View mErrorView;
     private TextView mErrorMessage;
+    // The pages received so far, by page number, and how many were asked for.
+    private final SparseArray<List<MediaBrowserCompat.MediaItem>> mPages = new SparseArray<>();
+    private int mRequestedPages;
     private final BroadcastReceiver mConnectivityChangeReceiver = new BroadcastReceiver() {
         private boolean oldOnline = false;
         @Override
@@ -133,14 +143,23 @@ public class MediaBrowserFragment extends Fragment {
         new MediaBrowserCompat.SubscriptionCallback() {
             @Override
             public void onChildrenLoaded(@NonNull String parentId,
-                                         @NonNull List<MediaBrowserCompat.MediaItem> children) {
+                                         @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                         @NonNull Bundle options) {
                 try {
+                    // Left over from the node shown before showMediaId.
+                    if (!parentId.equals(mMediaId)) {
+                        return;
+                    }
+                    int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE);
                     LogHelper.d("Kangtle", "fragment onChildrenLoaded, parentId=" + parentId +
-                        "  count=" + children.size());
+                        "  page=" + page + "  count=" + children.size());
 //                    checkForUserVisibleErrors(children.isEmpty());
+                    // Pages already shown are sent again when the children change.
+                    mPages.put(page, children);
+                    mBrowserAdapter.setNotifyOnChange(false);
                     mBrowserAdapter.clear();
-                    for (MediaBrowserCompat.MediaItem item : children) {
-                        mBrowserAdapter.add(item);
+                    for (int i = 0; i < mPages.size(); i++) {
+                        mBrowserAdapter.addAll(mPages.valueAt(i));
                     }
                     mBrowserAdapter.notifyDataSetChanged();
                 } catch (Throwable t) {
@@ -177,6 +196,22 @@ public class MediaBrowserFragment extends Fragment {
 
         ListView listView = (ListView) rootView.findViewById(R.id.list_view);
         listView.setAdapter(mBrowserAdapter);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PRELOAD_ITEMS) {
+                    requestNextPage();
+                    if (totalItemCount > 0 && mMediaFragmentListener instanceof NearEndListener) {
+                        ((NearEndListener) mMediaFragmentListener).onNearEnd(mMediaId);
+                    }
+                }
+            }
+        });
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -204,8 +239,7 @@ public class MediaBrowserFragment extends Fragment {
                     String category = input.getText().toString();
                     if (category.isEmpty()) return;
                     MytubeSource.insertCategory(category);
-                    mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-                    mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+                    subscribe();
                 }
             });
             builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -266,13 +300,11 @@ public class MediaBrowserFragment extends Fragment {
                 MytubeSource.deleteCategory(category);
             }else{
                 String mediaId = MediaIDHelper.extractMusicIDFromMediaID(mediaItem.getMediaId());
-                MediaMetadataCompat metadata = MusicProvider.mMusicListById.get(mediaId).metadata;
+                MediaMetadataCompat metadata = MusicProvider.getCatalog().getMusic(mediaId);
                 MytubeSource.deleteMusic(metadata);
             }
         }
-        MusicProvider.retrieveMedia(true);
-        mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        subscribe();
         return true;
     }
 
@@ -329,6 +361,28 @@ public class MediaBrowserFragment extends Fragment {
         setArguments(args);
     }
 
+    /**
+     * Show the children of another node in this fragment, in place: for nodes that change
+     * with every keystroke, like search results.
+     */
+    public void showMediaId(String mediaId) {
+        if (TextUtils.equals(mediaId, getMediaId())) {
+            return;
+        }
+        MediaBrowserCompat mediaBrowser = mMediaFragmentListener == null
+                ? null : mMediaFragmentListener.getMediaBrowser();
+        if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
+            mediaBrowser.unsubscribe(mMediaId);
+        }
+        // The arguments can't be replaced once the fragment is added, only changed.
+        getArguments().putString(ARG_MEDIA_ID, mediaId);
+        if (mediaBrowser != null && mediaBrowser.isConnected()) {
+            mMediaId = mediaId;
+            updateTitle();
+            subscribe();
+        }
+    }
+
     // Called when the MediaBrowser is connected. This method is either called by the
     // fragment.onStart() or explicitly by the activity in the case where the connection
     // completes after the onStart()
@@ -351,9 +405,7 @@ public class MediaBrowserFragment extends Fragment {
         // subscriber or not. Currently this only happens if the mediaID has no previous
         // subscriber or if the media content changes on the service side, so we need to
         // unsubscribe first.
-        mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        subscribe();
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         MediaControllerCompat controller = MediaControllerCompat.getMediaController(getActivity());
@@ -362,6 +414,34 @@ public class MediaBrowserFragment extends Fragment {
         }
     }
 
+    // Subscribe again from the first page; this also drops the subscriptions to later pages.
+    private void subscribe() {
+        MediaBrowserCompat mediaBrowser = mMediaFragmentListener.getMediaBrowser();
+        mediaBrowser.unsubscribe(mMediaId);
+        mPages.clear();
+        mRequestedPages = 0;
+        requestNextPage();
+    }
+
+    // Ask for the page after the last one, unless a page is still on its way or the last one
+    // wasn't full: there is nothing after it.
+    private void requestNextPage() {
+        MediaBrowserCompat mediaBrowser = mMediaFragmentListener == null
+                ? null : mMediaFragmentListener.getMediaBrowser();
+        if (mMediaId == null || mediaBrowser == null || !mediaBrowser.isConnected()
+                || mPages.size() < mRequestedPages) {
+            return;
+        }
+        if (mRequestedPages > 0 && mPages.get(mRequestedPages - 1).size() < PAGE_SIZE) {
+            return;
+        }
+        Bundle options = new Bundle();
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, mRequestedPages);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+        mRequestedPages++;
+        mediaBrowser.subscribe(mMediaId, options, mSubscriptionCallback);
+    }
+
     private void checkForUserVisibleErrors(boolean forceError) {
         boolean showError = forceError;
         // If offline, message is about the lack of connectivity:
@@ -427,4 +507,12 @@ public class MediaBrowserFragment extends Fragment {
         void setToolbarTitle(CharSequence title);
     }
 
+    /**
+     * Implemented by listeners that can add children to the list, told when it is scrolled
+     * close to its end so they can fetch more before it is reached.
+     */
+    public interface NearEndListener {
+        void onNearEnd(String mediaId);
+    }
+
 }
@@ -132,7 +132,7 @@ public class MediaItemViewHolder {
                     public void onClick(DialogInterface dialog, int which) {
                         String strCategory = arrayAdapter.getItem(which);
                         String mediaId = MediaIDHelper.extractMusicIDFromMediaID(item.getMediaId());
-                        MediaMetadataCompat metadata = MusicProvider.mMusicListById.get(mediaId).metadata;
+                        MediaMetadataCompat metadata = MusicProvider.getCatalog().getMusic(mediaId);
                         MytubeSource.insertMusic(strCategory, metadata);
                     }
                 });
@@ -35,7 +35,6 @@ import android.util.Log;
 
 import com.bhagathsing.android.mytube.R;
 import com.bhagathsing.android.mytube.model.MusicProvider;
-import com.bhagathsing.android.mytube.model.MutableMediaMetadata;
 import com.bhagathsing.android.mytube.model.MytubeSource;
 import com.bhagathsing.android.mytube.model.YoutubeAPIActivity;
 import com.bhagathsing.android.mytube.utils.LogHelper;
@@ -143,8 +142,8 @@ public class MusicPlayerActivity extends BaseActivity
         Log.d("Kangtle", "onMediaItemSelected, mediaId=" + item.getMediaId());
 
         if(item.getDescription().getTitle().equals(NEW_RECENTLY_SONGS)){
-            if(MusicProvider.mMusicListByGenre.containsKey(NEW_RECENTLY_SONGS) &&
-                    MusicProvider.mMusicListByGenre.get(NEW_RECENTLY_SONGS).size() >= YoutubeAPIActivity.SEARCH_MAX_RESULTS_NUM){
+            if(MusicProvider.getCatalog().getMusicsByGenre(NEW_RECENTLY_SONGS).size()
+                    >= YoutubeAPIActivity.SEARCH_MAX_RESULTS_NUM){
                 String mediaId = "__BY_GENRE__/" + NEW_RECENTLY_SONGS;
                 navigateToBrowser(mediaId);
             }else{
@@ -159,7 +158,7 @@ public class MusicPlayerActivity extends BaseActivity
                 MediaControllerCompat.getMediaController(MusicPlayerActivity.this).getTransportControls()
                         .playFromMediaId(item.getMediaId(), null);
                 String mediaId = MediaIDHelper.extractMusicIDFromMediaID(item.getMediaId());
-                MediaMetadataCompat metadata = MusicProvider.mMusicListById.get(mediaId).metadata;
+                MediaMetadataCompat metadata = MusicProvider.getCatalog().getMusic(mediaId);
                 MytubeSource.insertMusic(NEW_RECENTLY_SONGS, metadata);
             } else if (item.isBrowsable()) {
                 navigateToBrowser(item.getMediaId());
@@ -174,17 +173,12 @@ public class MusicPlayerActivity extends BaseActivity
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if(resultCode == 1){
+        if(resultCode == 1 && data != null){
             Log.d("Kangtle", String.valueOf(resultCode));
-            MusicProvider.mMusicListById.putAll(YoutubeAPIActivity.searchResults);
-            List<MediaMetadataCompat> list = MusicProvider.mMusicListByGenre.get(NEW_RECENTLY_SONGS);
-            if (list == null) {
-                list = new ArrayList<>();
-                MusicProvider.mMusicListByGenre.put(NEW_RECENTLY_SONGS, list);
-            }
-            for (MutableMediaMetadata m: YoutubeAPIActivity.searchResults.values()){
-                if(!list.contains(m.metadata))
-                    list.add(m.metadata);
+            List<MediaMetadataCompat> tracks =
+                    data.getParcelableArrayListExtra(YoutubeAPIActivity.EXTRA_TRACKS);
+            if (tracks != null) {
+                MusicProvider.addTracks(tracks);
             }
             String mediaId = "__BY_GENRE__/" + NEW_RECENTLY_SONGS;
             navigateToBrowser(mediaId);
@@ -4,28 +4,59 @@ import android.app.FragmentTransaction;
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v7.widget.SearchView;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Menu;
 
 import com.bhagathsing.android.mytube.model.MusicProvider;
-import com.bhagathsing.android.mytube.model.MutableMediaMetadata;
 import com.bhagathsing.android.mytube.model.MytubeSource;
 import com.bhagathsing.android.mytube.model.YoutubeAPIActivity;
+import com.bhagathsing.android.mytube.model.YoutubeSearchSession;
 import com.bhagathsing.android.mytube.utils.LogHelper;
 import com.bhagathsing.android.mytube.R;
 import com.bhagathsing.android.mytube.utils.MediaIDHelper;
 
-import java.util.ArrayList;
 import java.util.List;
 
+
+/**
+ * Search results, local and from YouTube.
+ *
+ * Started with a submitted query, it shows that query's YouTube results. Typing in its own
+ * search view then searches live: the local catalog on every keystroke, YouTube once the query
+ * has not changed for {@link #REMOTE_SEARCH_DELAY_MS}. A YouTube search is closed, cancelling
+ * its request if it is still on its way, as soon as the query changes, so there is never more
+ * than one and no results of an older query show up.
+ */
 public class SearchableActivity extends BaseActivity
-        implements MediaBrowserFragment.MediaFragmentListener {
+        implements MediaBrowserFragment.MediaFragmentListener,
+        MediaBrowserFragment.NearEndListener {
+
+    private static final String TAG = LogHelper.makeLogTag(SearchableActivity.class);
+
+    private static final long REMOTE_SEARCH_DELAY_MS = 600;
+    private static final int MIN_REMOTE_QUERY_LENGTH = 3;
 
     private String query;
+    // The YouTube search of the query shown, loading more results as the list nears its end;
+    // null if there is none.
+    private YoutubeSearchSession mSearchSession;
+    // The query typed in the search view, the last time it changed.
+    private String mLiveQuery = "";
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mRemoteSearch = new Runnable() {
+        @Override
+        public void run() {
+            startRemoteSearch(false);
+        }
+    };
 
     /**
      * Create the main activity.
@@ -47,44 +78,166 @@ public class SearchableActivity extends BaseActivity
         Intent intent = getIntent();
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
             query = intent.getStringExtra(SearchManager.QUERY);
-            Intent youtubeAPIIntent = new Intent(this, YoutubeAPIActivity.class);
-            youtubeAPIIntent.putExtra("query", query);
-            startActivityForResult(youtubeAPIIntent, 0);
+            startYoutubeAPIActivity();
         }
     }
 
+    private void startYoutubeAPIActivity() {
+        Intent youtubeAPIIntent = new Intent(this, YoutubeAPIActivity.class);
+        youtubeAPIIntent.putExtra("query", query);
+        startActivityForResult(youtubeAPIIntent, 0);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if(resultCode == 1){
+        if(resultCode == 1 && data != null){
             Log.d("Kangtle", String.valueOf(resultCode));
-            MusicProvider.mMusicListById.putAll(YoutubeAPIActivity.searchResults);
-            String category = "Search_" + query;
-            List<MediaMetadataCompat> list = MusicProvider.mMusicListByGenre.get(category);
-            if (list == null) {
-                list = new ArrayList<>();
-                MusicProvider.mMusicListByGenre.put(category, list);
+            closeRemoteSearch();
+            List<MediaMetadataCompat> tracks =
+                    data.getParcelableArrayListExtra(YoutubeAPIActivity.EXTRA_TRACKS);
+            if (tracks != null) {
+                MusicProvider.addTracks(tracks);
             }
-            for (MutableMediaMetadata m: YoutubeAPIActivity.searchResults.values()){
-                if(!list.contains(m.metadata))
-                    list.add(m.metadata);
+            // Authorized by now, unless the results came from the cache.
+            mSearchSession = YoutubeAPIActivity.openSessionIfAuthorized(this, query, null);
+            if (mSearchSession != null) {
+                mSearchSession.setNextPageToken(
+                        data.getStringExtra(YoutubeAPIActivity.EXTRA_NEXT_PAGE_TOKEN));
             }
-            String mediaId = "__BY_GENRE__/Search_" + query;
-            navigateToBrowser(mediaId);
+            navigateToBrowser(getSearchGenreMediaId(query));
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        final SearchView searchView = (SearchView) searchMenuItem.getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                onLiveQueryChanged(newText);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextSubmit(String text) {
+                onLiveQueryChanged(text);
+                startRemoteSearch(true);
+                searchView.clearFocus();
+                // Searched here rather than in a new activity.
+                return true;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Show the local results of the query at once, and search YouTube for it if it doesn't
+     * change again for a while.
+     */
+    private void onLiveQueryChanged(String text) {
+        // Neither separator of media IDs may appear in the query of one.
+        String liveQuery = text.replace('/', ' ').replace('|', ' ').trim();
+        if (liveQuery.equals(mLiveQuery)) {
+            return;
+        }
+        mLiveQuery = liveQuery;
+        mHandler.removeCallbacks(mRemoteSearch);
+        // Clearing the search view keeps the results shown.
+        if (liveQuery.isEmpty()) {
+            return;
+        }
+        // Results of an older query are of no use any more.
+        closeRemoteSearch();
+        showResults(MediaIDHelper.createMediaID(
+                null, MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH, liveQuery));
+        if (liveQuery.length() >= MIN_REMOTE_QUERY_LENGTH) {
+            mHandler.postDelayed(mRemoteSearch, REMOTE_SEARCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Search YouTube for the live query, in place of any search still running. Without an
+     * authorized account only a submitted query is searched, through
+     * {@link YoutubeAPIActivity} which can ask for one.
+     */
+    private void startRemoteSearch(boolean submitted) {
+        mHandler.removeCallbacks(mRemoteSearch);
+        if (mLiveQuery.isEmpty()) {
+            return;
+        }
+        closeRemoteSearch();
+        query = mLiveQuery;
+        final YoutubeSearchSession session =
+                YoutubeAPIActivity.openSessionIfAuthorized(this, query, null);
+        if (session == null) {
+            if (submitted) {
+                startYoutubeAPIActivity();
+            }
+            return;
+        }
+        mSearchSession = session;
+        session.setListener(new YoutubeSearchSession.Listener() {
+            @Override
+            public void onPageLoaded(YoutubeSearchSession loaded, int added) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Later pages reach the list through the music service.
+                        if (session == mSearchSession && !isFinishing()) {
+                            showResults(getSearchGenreMediaId(session.getQuery()));
+                        }
+                    }
+                });
+            }
+        });
+        LogHelper.d(TAG, "Searching YouTube for ", query);
+        session.loadFirstPage(YoutubeAPIActivity.getSearchCache(getApplicationContext()));
+    }
+
+    /**
+     * Stop the YouTube search of the query, if any, and drop its results.
+     */
+    private void closeRemoteSearch() {
+        // Before removing the genre, so no page lands in it afterwards.
+        if (mSearchSession != null) {
+            mSearchSession.close();
+            mSearchSession = null;
+        }
+        if (query != null) {
+            MusicProvider.removeGenre(YoutubeSearchSession.getSearchGenre(query));
+        }
+    }
+
+    private static String getSearchGenreMediaId(String query) {
+        return "__BY_GENRE__/" + YoutubeSearchSession.getSearchGenre(query);
+    }
+
+    @Override
+    public void onNearEnd(String mediaId) {
+        if (mSearchSession != null
+                && mediaId.equals(getSearchGenreMediaId(mSearchSession.getQuery()))) {
+            mSearchSession.loadNextPage();
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        for (String key: MusicProvider.mMusicListById.keySet()){
-            MediaMetadataCompat metadataCompat = MusicProvider.mMusicListById.get(key).metadata;
-            String genre = metadataCompat.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
-            if(genre.equals("Search_" + query)){
-                MusicProvider.mMusicListById.remove(key);
-            }
+        mHandler.removeCallbacksAndMessages(null);
+        closeRemoteSearch();
+    }
+
+    // Results change with every keystroke: show them in the list already there rather than
+    // sliding in a new one each time.
+    private void showResults(String mediaId) {
+        MediaBrowserFragment fragment = getBrowseFragment();
+        if (fragment == null) {
+            navigateToBrowser(mediaId);
+        } else {
+            fragment.showMediaId(mediaId);
         }
-        MusicProvider.mMusicListByGenre.remove("Search_" + query);
     }
 
     private static final String FRAGMENT_TAG = "uamp_list_container";
@@ -118,7 +271,7 @@ public class SearchableActivity extends BaseActivity
             MediaControllerCompat.getMediaController(this).getTransportControls()
                     .playFromMediaId(item.getMediaId(), null);
             String mediaId = MediaIDHelper.extractMusicIDFromMediaID(item.getMediaId());
-            MediaMetadataCompat metadata = MusicProvider.mMusicListById.get(mediaId).metadata;
+            MediaMetadataCompat metadata = MusicProvider.getCatalog().getMusic(mediaId);
             MytubeSource.insertMusic(MusicPlayerActivity.NEW_RECENTLY_SONGS, metadata);
         } else if (item.isBrowsable()) {
             navigateToBrowser(item.getMediaId());
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.utils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Generic reusable methods for the files the app keeps its state in.
+ */
+public class FileHelper {
+
+    public static final String CHARSET = "UTF-8";
+
+    /**
+     * What {@link #replace} writes.
+     */
+    public interface Content {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Replace the file with the content, written to a temporary file first and renamed over
+     * it once complete: a crash never leaves the file half written.
+     *
+     * @throws IOException if the content could not be written, the file is then unchanged.
+     */
+    public static void replace(File file, Content content) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), CHARSET));
+            content.writeTo(writer);
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            }
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Replace the file with the lines, see {@link #replace}.
+     */
+    public static void replaceLines(File file, final Iterable<?> lines) throws IOException {
+        replace(file, new Content() {
+            @Override
+            public void writeTo(Writer writer) throws IOException {
+                for (Object line : lines) {
+                    writer.write(line.toString());
+                    writer.write('\n');
+                }
+            }
+        });
+    }
+}
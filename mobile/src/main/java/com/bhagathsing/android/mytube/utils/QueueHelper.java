@@ -18,6 +18,7 @@ package com.bhagathsing.android.mytube.utils;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
@@ -29,6 +30,7 @@ import com.bhagathsing.android.mytube.model.MusicProvider;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
 import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static com.bhagathsing.android.mytube.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
 
@@ -40,6 +42,7 @@ public class QueueHelper {
     private static final String TAG = LogHelper.makeLogTag(QueueHelper.class);
 
     private static final int RANDOM_QUEUE_SIZE = 10;
+    private static final int FUZZY_QUEUE_SIZE = 20;
 
     public static List<MediaSessionCompat.QueueItem> getPlayingQueue(String mediaId,
             MusicProvider musicProvider) {
@@ -57,11 +60,14 @@ public class QueueHelper {
         LogHelper.d(TAG, "Creating playing queue for ", categoryType, ",  ", categoryValue);
 
         Iterable<MediaMetadataCompat> tracks = null;
-        // This sample only supports genre and by_search category types.
+        // This sample only supports genre, by_search and by_favorite category types.
         if (categoryType.equals(MEDIA_ID_MUSICS_BY_GENRE)) {
             tracks = musicProvider.getMusicsByGenre(categoryValue);
+        } else if (categoryType.equals(MEDIA_ID_MUSICS_BY_FAVORITE)) {
+            tracks = musicProvider.getFavoriteMusic();
         } else if (categoryType.equals(MEDIA_ID_MUSICS_BY_SEARCH)) {
-            tracks = musicProvider.searchMusicBySongTitle(categoryValue);
+            // The same tracks, in the same order, as the search node lists.
+            tracks = musicProvider.searchMusic(categoryValue);
         }
 
         if (tracks == null) {
@@ -69,7 +75,7 @@ public class QueueHelper {
             return null;
         }
 
-        return convertToQueue(tracks, hierarchy[0], hierarchy[1]);
+        return convertToQueue(musicProvider, tracks, hierarchy[0], hierarchy[1]);
     }
 
     public static List<MediaSessionCompat.QueueItem> getPlayingQueueFromSearch(String query,
@@ -105,16 +111,15 @@ public class QueueHelper {
         // a PodCast application wouldn't get results if we only looked at the
         // Artist (podcast author). Then, we can instead do an unstructured search.
         if (params.isUnstructured || result == null || !result.iterator().hasNext()) {
-            // To keep it simple for this bhagathsing, we do unstructured searches on the
-            // song title and genre only. A real world application could search
-            // on other fields as well.
-            result = musicProvider.searchMusicBySongTitle(query);
+            // Unstructured searches look at every field in a single pass, best matches first.
+            result = musicProvider.searchMusic(query);
             if (result.isEmpty()) {
-                result = musicProvider.searchMusicByGenre(query);
+                // Likely misheard or misspelled: fall back to the closest matches.
+                result = musicProvider.fuzzySearchMusic(query, FUZZY_QUEUE_SIZE);
             }
         }
 
-        return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, query);
+        return convertToQueue(musicProvider, result, MEDIA_ID_MUSICS_BY_SEARCH, query);
     }
 
 
@@ -142,25 +147,20 @@ public class QueueHelper {
         return -1;
     }
 
-    private static List<MediaSessionCompat.QueueItem> convertToQueue(
+    private static List<MediaSessionCompat.QueueItem> convertToQueue(MusicProvider musicProvider,
             Iterable<MediaMetadataCompat> tracks, String... categories) {
         List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
         int count = 0;
         for (MediaMetadataCompat track : tracks) {
 
-            // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
+            // We use a hierarchy-aware mediaID, so we know what the queue is about by looking
             // at the QueueItem media IDs.
-            String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                    track.getDescription().getMediaId(), categories);
-
-            MediaMetadataCompat trackCopy = new MediaMetadataCompat.Builder(track)
-                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                    .build();
+            MediaDescriptionCompat description = musicProvider.getDescription(track, categories);
 
             // We don't expect queues to change after created, so we use the item index as the
             // queueId. Any other number unique in the queue would work.
             MediaSessionCompat.QueueItem item = new MediaSessionCompat.QueueItem(
-                    trackCopy.getDescription(), count++);
+                    description, count++);
             queue.add(item);
         }
         return queue;
@@ -174,17 +174,11 @@ public class QueueHelper {
      * @return list containing {@link MediaSessionCompat.QueueItem}'s
      */
     public static List<MediaSessionCompat.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        List<MediaMetadataCompat> result = new ArrayList<>(RANDOM_QUEUE_SIZE);
-        Iterable<MediaMetadataCompat> shuffled = musicProvider.getShuffledMusic();
-        for (MediaMetadataCompat metadata: shuffled) {
-            if (result.size() == RANDOM_QUEUE_SIZE) {
-                break;
-            }
-            result.add(metadata);
-        }
+        List<MediaMetadataCompat> result =
+                musicProvider.getRandomMusic(null, RANDOM_QUEUE_SIZE, true);
         LogHelper.d(TAG, "getRandomQueue: result.size=", result.size());
 
-        return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, "random");
+        return convertToQueue(musicProvider, result, MEDIA_ID_MUSICS_BY_SEARCH, "random");
     }
 
     public static boolean isIndexPlayable(int index, List<MediaSessionCompat.QueueItem> queue) {
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.text.Normalizer;
+
+/**
+ * Utility class to derive the media ID of a track from its content.
+ *
+ * A track is identified by its genre and source, so the ID is a 64-bit xxHash of both,
+ * normalized, written as 16 hex digits: the same track always gets the same ID, on any
+ * device and across releases, and with 64 bits collisions are out of reach of any catalog
+ * (the old 32-bit String.hashCode IDs were not). {@link #toKey} turns an ID back into its
+ * 64-bit value for primitive hash maps.
+ */
+public class TrackIdHelper {
+
+    private static final int ID_LENGTH = 16;
+
+    private static final String YOUTUBE_SOURCE_PREFIX = "https://youtu.be/";
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * @return the media ID of the track with the given genre and source.
+     */
+    public static String createTrackId(String genre, String source) {
+        long hash = xxHash64(utf8(normalize(genre) + '\u0000' + normalize(source)));
+        String hex = Long.toHexString(hash);
+        StringBuilder sb = new StringBuilder(ID_LENGTH);
+        for (int i = hex.length(); i < ID_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    /**
+     * @return the 32-bit IDs the track may have had, to migrate data that refers to it:
+     * catalog tracks hashed their genre and source, YouTube search results their genre and
+     * bare video ID, and remote catalog tracks their source alone.
+     */
+    public static String[] createLegacyTrackIds(String genre, String source) {
+        if (source != null && source.startsWith(YOUTUBE_SOURCE_PREFIX)) {
+            String videoId = source.substring(YOUTUBE_SOURCE_PREFIX.length());
+            return new String[] {
+                    String.valueOf((genre + source).hashCode()),
+                    String.valueOf((genre + videoId).hashCode()),
+                    String.valueOf(source.hashCode())
+            };
+        }
+        return new String[] {
+                String.valueOf((genre + source).hashCode()),
+                String.valueOf(String.valueOf(source).hashCode())
+        };
+    }
+
+    /**
+     * @return true if the ID was made by {@link #createTrackId}.
+     */
+    public static boolean isTrackId(String mediaId) {
+        if (mediaId == null || mediaId.length() != ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ID_LENGTH; i++) {
+            if (Character.digit(mediaId.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the 64-bit value of an ID made by {@link #createTrackId}; for any other ID, a
+     * 64-bit hash of it.
+     */
+    public static long toKey(String mediaId) {
+        if (!isTrackId(mediaId)) {
+            return xxHash64(utf8(mediaId));
+        }
+        long key = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            key = (key << 4) | Character.digit(mediaId.charAt(i), 16);
+        }
+        return key;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : Normalizer.normalize(text.trim(), Normalizer.Form.NFC);
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * XXH64 with a seed of 0.
+     */
+    static long xxHash64(byte[] input) {
+        int length = input.length;
+        int offset = 0;
+        long hash;
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            int limit = length - 32;
+            do {
+                v1 = round(v1, readLong(input, offset));
+                v2 = round(v2, readLong(input, offset + 8));
+                v3 = round(v3, readLong(input, offset + 16));
+                v4 = round(v4, readLong(input, offset + 24));
+                offset += 32;
+            } while (offset <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += length;
+        while (offset + 8 <= length) {
+            hash ^= round(0, readLong(input, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            offset += 8;
+        }
+        if (offset + 4 <= length) {
+            hash ^= (readInt(input, offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        while (offset < length) {
+            hash ^= (input[offset] & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            offset++;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        return Long.rotateLeft(acc, 31) * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (readInt(bytes, offset) & 0xFFFFFFFFL)
+                | ((long) readInt(bytes, offset + 4) << 32);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
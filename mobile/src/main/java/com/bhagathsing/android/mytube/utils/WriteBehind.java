@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a write on its own thread shortly after a change, once for a whole burst of changes,
+ * so callers never wait for the disk.
+ *
+ * The write must pick up every change made before it starts: a change made while it runs
+ * schedules the next one.
+ */
+public class WriteBehind {
+
+    public static final long DELAY_MS = 500;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mWrite;
+
+    public WriteBehind(Runnable write) {
+        mWrite = write;
+    }
+
+    /**
+     * Run the write in {@link #DELAY_MS}, unless it is already due.
+     */
+    public void schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mScheduled.set(false);
+                mWrite.run();
+            }
+        }, DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run some other disk I/O on the write thread, right away.
+     */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Journals are written with category records only: tracks are MediaMetadataCompat, which has
+ * no values in JVM tests.
+ */
+public class CatalogJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreReplayedInOrder() throws Exception {
+        File journal = mFolder.newFile();
+        write(journal, LocalCatalog.insertCategoryRecord("Rock") + "\n"
+                + LocalCatalog.insertCategoryRecord("Jazz") + "\n"
+                + "\n"
+                + LocalCatalog.insertCategoryRecord("Pop") + "\n"
+                + LocalCatalog.deleteCategoryRecord("Jazz") + "\n"
+                + LocalCatalog.deleteMusicRecord("https://youtu.be/abc") + "\n");
+        LocalCatalog catalog = new CatalogJournal(missing(), journal).load();
+        assertEquals(Arrays.asList("Rock", "Pop"), new ArrayList<>(catalog.getCategories()));
+        assertTrue(catalog.getMusic().isEmpty());
+    }
+
+    @Test
+    public void tornRecordAtTheTailIsSkipped() throws Exception {
+        File journal = mFolder.newFile();
+        String torn = LocalCatalog.insertCategoryRecord("Pop").toString();
+        write(journal, LocalCatalog.insertCategoryRecord("Rock") + "\n"
+                + LocalCatalog.insertCategoryRecord("Jazz") + "\n"
+                + torn.substring(0, torn.length() / 2));
+        LocalCatalog catalog = new CatalogJournal(missing(), journal).load();
+        assertEquals(Arrays.asList("Rock", "Jazz"), new ArrayList<>(catalog.getCategories()));
+    }
+
+    @Test
+    public void missingFilesLoadAnEmptyCatalog() throws Exception {
+        LocalCatalog catalog = new CatalogJournal(missing(), missing()).load();
+        assertEquals(Collections.emptySet(), catalog.getCategories());
+        assertTrue(catalog.getMusic().isEmpty());
+    }
+
+    private File missing() {
+        return new File(mFolder.getRoot(), "missing");
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(content);
+        writer.close();
+    }
+}
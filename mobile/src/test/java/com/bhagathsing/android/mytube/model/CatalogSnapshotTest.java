@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tracks are added to the editor's store from their columns and read back by ordinal: in
+ * JVM tests, MediaMetadataCompat has no values.
+ */
+public class CatalogSnapshotTest {
+
+    @Test
+    public void addedTracksAreFoundByIdAndGenre() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        add(editor, "Rock", "b", "B");
+        add(editor, "Rock", "a", "A");
+        add(editor, "Jazz", "c", "C");
+        CatalogSnapshot snapshot = editor.build();
+        assertEquals(3, snapshot.size());
+        assertEquals(1, snapshot.getEpoch());
+        assertEquals(new HashSet<>(Arrays.asList("Rock", "Jazz")), snapshot.getGenres());
+        assertTitles(snapshot, "Rock", "A", "B");
+        assertEquals("C", title(snapshot, id("Jazz", "c")));
+        assertEquals(-1, snapshot.getOrdinal(id("Jazz", "a")));
+    }
+
+    @Test
+    public void genreKeepsOneTrackPerSource() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        assertTrue(add(editor, "Rock", "a", "A"));
+        assertFalse(add(editor, "Rock", "a", "Again"));
+        assertTrue(add(editor, "Jazz", "a", "A"));
+        CatalogSnapshot snapshot = editor.build();
+        assertEquals(2, snapshot.size());
+        assertTitles(snapshot, "Rock", "A");
+    }
+
+    @Test
+    public void publishedSnapshotIsUnchangedByLaterEdits() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        add(editor, "Rock", "a", "A");
+        add(editor, "Rock", "b", "B");
+        add(editor, "Jazz", "c", "C");
+        CatalogSnapshot published = editor.build();
+        int ordinalOfA = published.getOrdinal(id("Rock", "a"));
+
+        CatalogSnapshot.Editor next = published.edit();
+        add(next, "Rock", "d", "D");
+        next.removeGenre("Jazz");
+        TrackStore store = next.getStore();
+        int newA = store.add(id("Rock", "a"), "A", "With art", "Rock", "a", 0);
+        assertTrue(next.replaceTrack(id("Rock", "a"), newA));
+        CatalogSnapshot edited = next.build();
+
+        assertEquals(3, published.size());
+        assertEquals(new HashSet<>(Arrays.asList("Rock", "Jazz")), published.getGenres());
+        assertTitles(published, "Rock", "A", "B");
+        assertEquals(ordinalOfA, published.getOrdinal(id("Rock", "a")));
+        assertEquals(ordinalOfA, published.getGenreList("Rock").getOrdinal(0));
+        assertEquals("C", title(published, id("Jazz", "c")));
+
+        assertEquals(published.getEpoch() + 1, edited.getEpoch());
+        assertEquals(3, edited.size());
+        assertEquals(Collections.singleton("Rock"), edited.getGenres());
+        assertTitles(edited, "Rock", "A", "B", "D");
+        assertEquals(newA, edited.getOrdinal(id("Rock", "a")));
+        assertEquals(newA, edited.getGenreList("Rock").getOrdinal(0));
+        assertEquals(-1, edited.getOrdinal(id("Jazz", "c")));
+    }
+
+    @Test
+    public void replacingAnUnknownTrackChangesNothing() {
+        CatalogSnapshot snapshot = empty();
+        CatalogSnapshot.Editor editor = snapshot.edit();
+        int ordinal = editor.getStore().add(id("Rock", "a"), "A", null, "Rock", "a", 0);
+        assertFalse(editor.replaceTrack(id("Rock", "a"), ordinal));
+        assertSame(snapshot, editor.build());
+    }
+
+    @Test
+    public void editorIsDoneOnceBuilt() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        editor.build();
+        try {
+            add(editor, "Rock", "a", "A");
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void firstTrackWithAnIdWinsWhenBuiltFromScratch() {
+        TrackStore store = new TrackStore();
+        int first = store.add(id("Rock", "a"), "First", null, "Rock", "a", 0);
+        int second = store.add(id("Rock", "a"), "Second", null, "Rock", "a", 0);
+        CatalogSnapshot snapshot = CatalogSnapshot.of(0, store, new int[] {first, second}, 2);
+        assertEquals(1, snapshot.size());
+        assertEquals(first, snapshot.getOrdinal(id("Rock", "a")));
+        assertEquals(1, snapshot.getGenreList("Rock").size());
+    }
+
+    @Test
+    public void sourceIsRemovedFromEveryGenre() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        add(editor, "Rock", "shared", "Shared");
+        add(editor, "Jazz", "shared", "Shared");
+        add(editor, "Jazz", "other", "Other");
+        CatalogSnapshot published = editor.build();
+
+        CatalogSnapshot.Editor next = published.edit();
+        int[] removed = next.removeSource("shared");
+        CatalogSnapshot edited = next.build();
+        assertEquals(2, removed.length);
+        assertEquals(1, edited.size());
+        assertEquals(0, edited.getGenreList("Rock").size());
+        assertTitles(edited, "Jazz", "Other");
+        assertEquals(-1, edited.getOrdinal(id("Rock", "shared")));
+        assertEquals(0, edited.edit().removeSource("shared").length);
+        assertTitles(published, "Rock", "Shared");
+        assertTitles(published, "Jazz", "Other", "Shared");
+    }
+
+    @Test
+    public void replacedTrackIsRemovedBySource() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        add(editor, "Rock", "a", "A");
+        int newA = editor.getStore().add(id("Rock", "a"), "A", "With art", "Rock", "a", 0);
+        editor.replaceTrack(id("Rock", "a"), newA);
+        CatalogSnapshot.Editor next = editor.build().edit();
+        assertArrayEquals(new int[] {newA}, next.removeSource("a"));
+        assertEquals(0, next.build().size());
+    }
+
+    @Test
+    public void sourcesFollowTheTracksToACompactedStore() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        for (int i = 0; i < 300; i++) {
+            add(editor, i < 10 ? "Kept" : "Dropped", "src" + i, "Title " + i);
+        }
+        CatalogSnapshot.Editor next = editor.build().edit();
+        next.removeGenre("Dropped");
+        CatalogSnapshot compacted = next.build();
+        CatalogSnapshot.Editor last = compacted.edit();
+        int[] removed = last.removeSource("src3");
+        assertEquals(1, removed.length);
+        assertEquals("Title 3", compacted.getStore().getTitle(removed[0]));
+        assertEquals(9, last.build().size());
+    }
+
+    @Test
+    public void storeIsCompactedOnceMostlyRemovedTracks() {
+        CatalogSnapshot.Editor editor = empty().edit();
+        for (int i = 0; i < 300; i++) {
+            add(editor, i < 10 ? "Kept" : "Dropped", "src" + i, "Title " + i);
+        }
+        CatalogSnapshot full = editor.build();
+        CatalogSnapshot.Editor next = full.edit();
+        next.removeGenre("Dropped");
+        CatalogSnapshot compacted = next.build();
+
+        assertNotSame(full.getStore(), compacted.getStore());
+        assertEquals(10, compacted.getStore().size());
+        assertEquals(10, compacted.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Title " + i, title(compacted, id("Kept", "src" + i)));
+        }
+        assertEquals(300, full.getStore().size());
+        assertEquals(300, full.size());
+        assertEquals("Title 20", title(full, id("Dropped", "src20")));
+    }
+
+    private static CatalogSnapshot empty() {
+        return CatalogSnapshot.of(0, new TrackStore(), new int[0], 0);
+    }
+
+    private static String id(String genre, String source) {
+        return TrackIdHelper.createTrackId(genre, source);
+    }
+
+    private static boolean add(CatalogSnapshot.Editor editor, String genre, String source,
+                               String title) {
+        int ordinal = editor.getStore().add(id(genre, source), title, null, genre, source, 0);
+        return editor.addTrack(ordinal);
+    }
+
+    private static String title(CatalogSnapshot snapshot, String musicId) {
+        int ordinal = snapshot.getOrdinal(musicId);
+        return ordinal < 0 ? null : snapshot.getStore().getTitle(ordinal);
+    }
+
+    private static void assertTitles(CatalogSnapshot snapshot, String genre, String... titles) {
+        SortedTrackList list = snapshot.getGenreList(genre);
+        assertEquals(titles.length, list.size());
+        for (int i = 0; i < titles.length; i++) {
+            assertEquals(titles[i], list.getStore().getTitle(list.getOrdinal(i)));
+        }
+    }
+}
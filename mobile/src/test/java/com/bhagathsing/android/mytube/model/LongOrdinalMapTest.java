@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The high 32 bits of a key pick its slot, so keys sharing them collide on purpose.
+ */
+public class LongOrdinalMapTest {
+
+    @Test
+    public void keyIsMappedOnlyOnce() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        assertEquals(-1, map.putIfAbsent(key(1, 1), 10));
+        assertEquals(10, map.putIfAbsent(key(1, 1), 20));
+        assertEquals(10, map.get(key(1, 1)));
+        assertEquals(-1, map.get(key(1, 2)));
+        assertEquals(1, map.size());
+        map.replace(key(1, 1), 20);
+        assertEquals(20, map.get(key(1, 1)));
+    }
+
+    @Test
+    public void removalMovesBackTheEntriesProbedAfterIt() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        map.putIfAbsent(key(1, 1), 1);
+        map.putIfAbsent(key(1, 2), 2);
+        map.putIfAbsent(key(1, 3), 3);
+        // Home slot 2, pushed past the run of slot 1.
+        map.putIfAbsent(key(2, 4), 4);
+        assertTrue(map.remove(key(1, 1)));
+        assertFalse(map.remove(key(1, 1)));
+        assertEquals(-1, map.get(key(1, 1)));
+        assertEquals(2, map.get(key(1, 2)));
+        assertEquals(3, map.get(key(1, 3)));
+        assertEquals(4, map.get(key(2, 4)));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void removalMovesBackEntriesThatWrappedAround() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        // Slots 7 and 0, then slot 1 for the key at home in slot 0.
+        map.putIfAbsent(key(7, 1), 1);
+        map.putIfAbsent(key(7, 2), 2);
+        map.putIfAbsent(key(0, 3), 3);
+        assertTrue(map.remove(key(7, 1)));
+        assertEquals(2, map.get(key(7, 2)));
+        assertEquals(3, map.get(key(0, 3)));
+        assertTrue(map.remove(key(7, 2)));
+        assertEquals(3, map.get(key(0, 3)));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void removalLeavesEntriesAtHomeInPlace() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        map.putIfAbsent(key(1, 1), 1);
+        map.putIfAbsent(key(2, 2), 2);
+        map.putIfAbsent(key(3, 3), 3);
+        assertTrue(map.remove(key(2, 2)));
+        assertEquals(1, map.get(key(1, 1)));
+        assertEquals(3, map.get(key(3, 3)));
+    }
+
+    @Test
+    public void entriesSurviveGrowingAndRemoval() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(-1, map.putIfAbsent(key(i % 5, i), i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(map.remove(key(i % 5, i)));
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, map.get(key(i % 5, i)));
+        }
+    }
+
+    @Test
+    public void keyCanHaveSeveralOrdinals() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        map.add(key(1, 1), 1);
+        map.add(key(1, 2), 2);
+        map.add(key(1, 1), 3);
+        assertArrayEquals(new int[] {1, 3}, sorted(map.getAll(key(1, 1))));
+        assertTrue(map.remove(key(1, 1), 1));
+        assertFalse(map.remove(key(1, 1), 1));
+        assertFalse(map.remove(key(1, 2), 3));
+        assertArrayEquals(new int[] {3}, map.getAll(key(1, 1)));
+        assertArrayEquals(new int[] {2}, map.getAll(key(1, 2)));
+        assertArrayEquals(new int[0], map.getAll(key(5, 5)));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        map.putIfAbsent(key(1, 1), 1);
+        LongOrdinalMap copy = map.copy();
+        copy.putIfAbsent(key(2, 2), 2);
+        copy.remove(key(1, 1));
+        assertEquals(1, map.get(key(1, 1)));
+        assertEquals(-1, map.get(key(2, 2)));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void ordinalsAreRemapped() {
+        LongOrdinalMap map = new LongOrdinalMap();
+        map.putIfAbsent(key(1, 1), 4);
+        map.putIfAbsent(key(2, 2), 7);
+        int[] newOrdinals = {-1, -1, -1, -1, 0, -1, -1, 1};
+        LongOrdinalMap remapped = map.withOrdinals(newOrdinals);
+        assertEquals(0, remapped.get(key(1, 1)));
+        assertEquals(1, remapped.get(key(2, 2)));
+        assertEquals(4, map.get(key(1, 1)));
+        int[] ordinals = new int[2];
+        assertEquals(2, remapped.copyOrdinals(ordinals, 0));
+        assertArrayEquals(new int[] {0, 1}, sorted(ordinals));
+    }
+
+    private static long key(int slot, int low) {
+        return (long) slot << 32 | low;
+    }
+
+    private static int[] sorted(int[] values) {
+        int[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+}
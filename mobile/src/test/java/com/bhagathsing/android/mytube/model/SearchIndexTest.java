@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    private final SearchIndex mIndex = new SearchIndex();
+
+    @Test
+    public void everyWordMustStartAWordOfTheTrack() {
+        mIndex.add("queen", "Dancing Queen", "ABBA", "Arrival", "Pop");
+        mIndex.add("king", "Dancing King", null, null, "Pop");
+        assertEquals(Collections.singletonList("queen"),
+                mIndex.search("danc QUE", SearchIndex.ALL_FIELDS));
+        assertEquals(Collections.emptyList(), mIndex.search("ancing", SearchIndex.ALL_FIELDS));
+        assertEquals(Collections.emptyList(),
+                mIndex.search("dancing prince", SearchIndex.ALL_FIELDS));
+        assertEquals(Collections.emptyList(), mIndex.search(" - ", SearchIndex.ALL_FIELDS));
+    }
+
+    @Test
+    public void titleMatchesRankAboveArtistAlbumAndGenre() {
+        mIndex.add("genre", "One", null, null, "Abba");
+        mIndex.add("album", "Two", null, "Abba Gold", "Pop");
+        mIndex.add("artist", "Three", "Abba", null, "Pop");
+        mIndex.add("title", "Abba Medley", null, null, "Pop");
+        assertEquals(Arrays.asList("title", "artist", "album", "genre"),
+                mIndex.search("abba", SearchIndex.ALL_FIELDS));
+    }
+
+    @Test
+    public void scoresAddUpOverTheWordsOfTheQuery() {
+        mIndex.add("artist", "Waterloo", "Abba", null, null);
+        mIndex.add("album", "Waterloo", null, "Abba", null);
+        // Title + artist beats title + album.
+        assertEquals(Arrays.asList("artist", "album"),
+                mIndex.search("waterloo abba", SearchIndex.ALL_FIELDS));
+    }
+
+    @Test
+    public void onlyTheGivenFieldsAreSearched() {
+        mIndex.add("title", "Abba Medley", null, null, "Pop");
+        mIndex.add("artist", "Three", "Abba", null, "Pop");
+        assertEquals(Collections.singletonList("artist"),
+                mIndex.search("abba", SearchIndex.FIELD_ARTIST));
+    }
+
+    @Test
+    public void removedTrackIsNotFoundAndItsOrdinalIsReused() {
+        TrackStore store = new TrackStore();
+        int queen = store.add("queen", "Dancing Queen", null, "Pop", "q", 0);
+        int king = store.add("king", "Fernando", null, "Pop", "k", 0);
+        assertTrue(mIndex.add(store, queen));
+        assertFalse(mIndex.add(store, queen));
+        mIndex.remove(store, queen);
+        assertEquals(Collections.emptyList(), mIndex.search("queen", SearchIndex.ALL_FIELDS));
+        assertTrue(mIndex.add(store, king));
+        assertEquals(Collections.singletonList("king"),
+                mIndex.search("pop", SearchIndex.ALL_FIELDS));
+        assertEquals(Collections.emptyList(), mIndex.search("dancing", SearchIndex.ALL_FIELDS));
+    }
+
+    @Test
+    public void misspelledQueryFindsTheMostSimilarTracksFirst() {
+        mIndex.add("queen", "Dancing Queen", null, null, "Pop");
+        mIndex.add("king", "Dancing King", null, null, "Pop");
+        mIndex.add("fernando", "Fernando", null, null, "Pop");
+        assertEquals(Collections.emptyList(),
+                mIndex.search("dansing qween", SearchIndex.ALL_FIELDS));
+        assertEquals(Arrays.asList("queen", "king"),
+                mIndex.fuzzySearch("dansing qween", SearchIndex.ALL_FIELDS, 10));
+        assertEquals(Collections.singletonList("queen"),
+                mIndex.fuzzySearch("dansing qween", SearchIndex.ALL_FIELDS, 1));
+    }
+
+    @Test
+    public void fuzzySearchLooksAtTitleArtistAndAlbumOnly() {
+        mIndex.add("artist", "One", "Agnetha Faltskog", null, "Pop");
+        mIndex.add("genre", "Two", null, null, "Agnetha");
+        assertEquals(Collections.singletonList("artist"),
+                mIndex.fuzzySearch("agneta faltskog", SearchIndex.ALL_FIELDS, 10));
+        assertEquals(Collections.emptyList(),
+                mIndex.fuzzySearch("agneta faltskog", SearchIndex.FIELD_TITLE, 10));
+    }
+
+    @Test
+    public void removedTrackIsNotFoundBySimilarity() {
+        TrackStore store = new TrackStore();
+        int queen = store.add("queen", "Dancing Queen", null, "Pop", "q", 0);
+        mIndex.add(store, queen);
+        mIndex.remove(store, queen);
+        assertEquals(Collections.emptyList(),
+                mIndex.fuzzySearch("dancing queen", SearchIndex.ALL_FIELDS, 10));
+    }
+}
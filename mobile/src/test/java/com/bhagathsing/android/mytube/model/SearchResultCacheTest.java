@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchResultCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void putResultsAreFresh() throws Exception {
+        SearchResultCache cache = new SearchResultCache(mFolder.newFile());
+        cache.put("abba", results("a", 3), "next");
+        SearchResultCache.Entry entry = cache.get("abba");
+        assertNotNull(entry);
+        assertTrue(entry.isFresh());
+        assertEquals(3, entry.results.size());
+        assertEquals("next", entry.nextPageToken);
+    }
+
+    @Test
+    public void queriesDifferingInCaseAndSpacesShareAnEntry() throws Exception {
+        SearchResultCache cache = new SearchResultCache(mFolder.newFile());
+        cache.put("Dancing  Queen ", results("a", 1), null);
+        assertNotNull(cache.get("dancing queen"));
+    }
+
+    @Test
+    public void entriesPastFreshAreStaleButReturned() throws Exception {
+        File file = mFolder.newFile();
+        writeEntry(file, "abba", age(SearchResultCache.FRESH_MS + TimeUnit.MINUTES.toMillis(1)));
+        SearchResultCache.Entry entry = new SearchResultCache(file).get("abba");
+        assertNotNull(entry);
+        assertFalse(entry.isFresh());
+    }
+
+    @Test
+    public void entriesPastMaxAgeAreDropped() throws Exception {
+        File file = mFolder.newFile();
+        writeEntry(file, "abba", age(SearchResultCache.MAX_AGE_MS + TimeUnit.MINUTES.toMillis(1)));
+        assertNull(new SearchResultCache(file).get("abba"));
+    }
+
+    @Test
+    public void entriesFromTheFutureAreDropped() throws Exception {
+        File file = mFolder.newFile();
+        writeEntry(file, "abba", age(-TimeUnit.DAYS.toMillis(1)));
+        assertNull(new SearchResultCache(file).get("abba"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDroppedPastMaxResults() throws Exception {
+        SearchResultCache cache = new SearchResultCache(mFolder.newFile());
+        int perQuery = SearchResultCache.MAX_RESULTS / 3;
+        cache.put("one", results("1", perQuery), null);
+        cache.put("two", results("2", perQuery), null);
+        cache.put("three", results("3", perQuery), null);
+        // "one" is used again: "two" is now the least recently used.
+        assertNotNull(cache.get("one"));
+        cache.put("four", results("4", perQuery), null);
+        assertNull(cache.get("two"));
+        assertNotNull(cache.get("one"));
+        assertNotNull(cache.get("three"));
+        assertNotNull(cache.get("four"));
+    }
+
+    @Test
+    public void replacingAnEntryDoesNotCountItsOldResults() throws Exception {
+        SearchResultCache cache = new SearchResultCache(mFolder.newFile());
+        int perQuery = SearchResultCache.MAX_RESULTS / 2;
+        cache.put("one", results("1", perQuery), null);
+        cache.put("two", results("2", perQuery), null);
+        cache.put("two", results("2", perQuery), null);
+        assertNotNull(cache.get("one"));
+        assertNotNull(cache.get("two"));
+    }
+
+    @Test
+    public void flushedEntriesAreReadBack() throws Exception {
+        File file = mFolder.newFile();
+        SearchResultCache cache = new SearchResultCache(file);
+        cache.put("abba", results("a", 2), "next");
+        cache.flush();
+        SearchResultCache.Entry entry = new SearchResultCache(file).get("abba");
+        assertNotNull(entry);
+        assertTrue(entry.isFresh());
+        assertEquals("next", entry.nextPageToken);
+        assertEquals("a1", entry.results.get(1).videoId);
+        assertEquals("Title a1", entry.results.get(1).title);
+        assertEquals(1000, entry.results.get(1).duration);
+    }
+
+    @Test
+    public void unreadableLinesAreSkipped() throws Exception {
+        File file = mFolder.newFile();
+        writeEntry(file, "abba", age(0));
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        writer.write("not json\n");
+        writer.close();
+        assertNotNull(new SearchResultCache(file).get("abba"));
+    }
+
+    private static List<SearchResultCache.Result> results(String prefix, int count) {
+        List<SearchResultCache.Result> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(new SearchResultCache.Result(prefix + i, "Title " + prefix + i, 1000));
+        }
+        return results;
+    }
+
+    private static long age(long ms) {
+        return System.currentTimeMillis() - ms;
+    }
+
+    // Written in the cache's own format, to make entries as old as needed.
+    private static void writeEntry(File file, String query, long fetched) throws Exception {
+        JSONObject record = new JSONObject()
+                .put("q", query)
+                .put("t", fetched)
+                .put("r", new JSONArray(Collections.singletonList(new JSONObject()
+                        .put("id", "a0")
+                        .put("title", "Title a0")
+                        .put("duration", 1000))));
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(record.toString());
+        writer.write('\n');
+        writer.close();
+    }
+}
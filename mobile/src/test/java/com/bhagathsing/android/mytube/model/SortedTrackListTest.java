@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lists are read through their ordinals: in JVM tests, MediaMetadataCompat has no values.
+ */
+public class SortedTrackListTest {
+
+    private final TrackStore mStore = new TrackStore();
+
+    @Test
+    public void tracksAreSortedByTitleIgnoringCase() {
+        int banana = add("banana", "b");
+        int apple = add("Apple", "a");
+        int cherry = add("cherry", "c");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {banana, apple, cherry}, 3);
+        assertOrdinals(list, apple, banana, cherry);
+    }
+
+    @Test
+    public void tracksWithTheSourceOfAnEarlierOneAreDropped() {
+        int first = add("One", "src");
+        int second = add("Two", "src");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {first, second}, 2);
+        assertOrdinals(list, first);
+    }
+
+    @Test
+    public void addedTrackGoesAfterTheSameTitleAndLeavesTheListAsItWas() {
+        int a = add("A", "a");
+        int b = add("B", "b1");
+        int c = add("C", "c");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {a, b, c}, 3);
+        int otherB = add("b", "b2");
+        SortedTrackList added = list.withTrack(otherB);
+        assertOrdinals(added, a, b, otherB, c);
+        assertTrue(added.containsSource("b2"));
+        assertOrdinals(list, a, b, c);
+        assertFalse(list.containsSource("b2"));
+    }
+
+    @Test
+    public void addingAKnownSourceReturnsTheSameList() {
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {add("A", "src")}, 1);
+        assertSame(list, list.withTrack(add("B", "src")));
+    }
+
+    @Test
+    public void removedSourceIsGoneFromTheNewListOnly() {
+        int a = add("A", "a");
+        int b = add("B", "b");
+        int c = add("C", "c");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {c, b, a}, 3);
+        SortedTrackList removed = list.withoutSource("b");
+        assertOrdinals(removed, a, c);
+        assertFalse(removed.containsSource("b"));
+        assertOrdinals(list, a, b, c);
+        assertSame(removed, removed.withoutSource("b"));
+    }
+
+    @Test
+    public void replacedOrdinalKeepsItsPlace() {
+        int a = add("A", "a");
+        int b = add("B", "b");
+        int c = add("C", "c");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {a, b, c}, 3);
+        int newB = add("B", "b");
+        SortedTrackList replaced = list.withOrdinalReplaced(b, newB);
+        assertOrdinals(replaced, a, newB, c);
+        assertOrdinals(list, a, b, c);
+        // The old ordinal is no longer in the new list.
+        assertSame(replaced, replaced.withOrdinalReplaced(b, add("B", "b")));
+    }
+
+    @Test
+    public void listMovesToAnotherStoreInTheSameOrder() {
+        int a = add("A", "a");
+        int b = add("B", "b");
+        SortedTrackList list = SortedTrackList.of(mStore, new int[] {b, a}, 2);
+        TrackStore store = new TrackStore();
+        int[] newOrdinals = new int[mStore.size()];
+        newOrdinals[b] = store.copy(mStore, b);
+        newOrdinals[a] = store.copy(mStore, a);
+        SortedTrackList moved = list.withStore(store, newOrdinals);
+        assertSame(store, moved.getStore());
+        assertOrdinals(moved, newOrdinals[a], newOrdinals[b]);
+        assertTrue(moved.containsSource("a"));
+    }
+
+    private int add(String title, String source) {
+        return mStore.add(TrackIdHelper.createTrackId("Rock", source), title, null, "Rock",
+                source, 0);
+    }
+
+    private static void assertOrdinals(SortedTrackList list, int... ordinals) {
+        assertEquals(ordinals.length, list.size());
+        for (int i = 0; i < ordinals.length; i++) {
+            assertEquals(ordinals[i], list.getOrdinal(i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import com.bhagathsing.android.mytube.utils.TrackIdHelper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TrackStoreTest {
+
+    @Test
+    public void columnsAreReadBack() {
+        TrackStore store = new TrackStore();
+        int ordinal = add(store, "Rock", "Dancing Queen", "src");
+        assertEquals(0, ordinal);
+        assertEquals(TrackIdHelper.createTrackId("Rock", "src"), store.getMediaId(ordinal));
+        assertEquals("Dancing Queen", store.getTitle(ordinal));
+        assertEquals("Album of Dancing Queen", store.getAlbum(ordinal));
+        assertEquals("Rock", store.getGenre(ordinal));
+        assertEquals("src", store.getSource(ordinal));
+        assertEquals(1000, store.getDuration(ordinal));
+        assertNull(store.getArtist(ordinal));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void missingAlbumAndGenreReadBackAsNull() {
+        TrackStore store = new TrackStore();
+        int ordinal = store.add("id", "Title", null, null, "src", 0);
+        assertNull(store.getAlbum(ordinal));
+        assertNull(store.getGenre(ordinal));
+    }
+
+    @Test
+    public void ordinalsKeepTheirTracksAsTheStoreGrows() {
+        TrackStore store = new TrackStore();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, add(store, "Genre " + (i % 7), "Title " + i, "src" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Title " + i, store.getTitle(i));
+            assertEquals("Genre " + (i % 7), store.getGenre(i));
+            assertEquals("src" + i, store.getSource(i));
+        }
+    }
+
+    @Test
+    public void copiedTracksKeepTheirColumns() {
+        TrackStore from = new TrackStore();
+        add(from, "Rock", "One", "src1");
+        int ordinal = add(from, "Jazz", "Two", "src2");
+        TrackStore to = new TrackStore();
+        add(to, "Pop", "Zero", "src0");
+        int copy = to.copy(from, ordinal);
+        assertEquals(1, copy);
+        assertEquals(from.getMediaId(ordinal), to.getMediaId(copy));
+        assertEquals("Two", to.getTitle(copy));
+        assertEquals("Album of Two", to.getAlbum(copy));
+        assertEquals("Jazz", to.getGenre(copy));
+        assertEquals("src2", to.getSource(copy));
+        assertEquals(1000, to.getDuration(copy));
+    }
+
+    private static int add(TrackStore store, String genre, String title, String source) {
+        return store.add(TrackIdHelper.createTrackId(genre, source), title, "Album of " + title,
+                genre, source, 1000);
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.youtube.YouTube;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs searches against a local fake of the search.list and videos.list endpoints.
+ */
+public class YoutubeSearchSessionTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private YouTube mService;
+
+    // What the fake endpoints answer and were asked, guarded by the test.
+    private int mSearchResultCount;
+    private String mNextPageToken;
+    private boolean mVideosFail;
+    private final List<Map<String, String>> mSearchRequests = new ArrayList<>();
+    private final List<Map<String, String>> mVideosRequests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/youtube/v3/search", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String response;
+                synchronized (YoutubeSearchSessionTest.this) {
+                    mSearchRequests.add(readQuery(exchange));
+                    response = searchResponse(mSearchResultCount, mNextPageToken);
+                }
+                respond(exchange, 200, response);
+            }
+        });
+        mServer.createContext("/youtube/v3/videos", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> query = readQuery(exchange);
+                boolean fail;
+                synchronized (YoutubeSearchSessionTest.this) {
+                    mVideosRequests.add(query);
+                    fail = mVideosFail;
+                }
+                if (fail) {
+                    respond(exchange, 500, "{\"error\":{\"code\":500,\"message\":\"fake\"}}");
+                } else {
+                    respond(exchange, 200, videosResponse(query.get("id").split(",")));
+                }
+            }
+        });
+        mServer.start();
+        mService = new YouTube.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(),
+                null)
+                .setRootUrl("http://127.0.0.1:" + mServer.getAddress().getPort() + "/")
+                .setApplicationName("test")
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void fetchPageReturnsEveryResultInSearchOrder() throws Exception {
+        setSearchResponse(40, "page2");
+        YoutubeSearchSession.Page page = newSession().fetchPage(null);
+        assertEquals(40, page.results.size());
+        for (int i = 0; i < 40; i++) {
+            SearchResultCache.Result result = page.results.get(i);
+            assertEquals(videoId(i), result.videoId);
+            assertEquals("Title " + videoId(i), result.title);
+            assertEquals(65000, result.duration);
+        }
+        assertEquals("page2", page.nextPageToken);
+    }
+
+    @Test
+    public void fetchPageLooksUpVideosInBatches() throws Exception {
+        setSearchResponse(40, null);
+        newSession().fetchPage(null);
+        synchronized (this) {
+            // 15, 15 and the 10 left at the end.
+            assertEquals(3, mVideosRequests.size());
+            int ids = 0;
+            for (Map<String, String> request : mVideosRequests) {
+                ids += request.get("id").split(",").length;
+                assertEquals("items(id,snippet/title,contentDetails/duration)",
+                        request.get("fields"));
+            }
+            assertEquals(40, ids);
+        }
+    }
+
+    @Test
+    public void fetchPageAsksForTheQueryAndPage() throws Exception {
+        setSearchResponse(5, null);
+        YoutubeSearchSession.Page page = newSession().fetchPage("page2");
+        assertNull(page.nextPageToken);
+        synchronized (this) {
+            Map<String, String> request = mSearchRequests.get(0);
+            assertEquals("abba", request.get("q"));
+            assertEquals("page2", request.get("pageToken"));
+            assertEquals(String.valueOf(YoutubeSearchSession.PAGE_SIZE),
+                    request.get("maxResults"));
+            assertEquals("nextPageToken,items/id/videoId", request.get("fields"));
+        }
+    }
+
+    @Test
+    public void fetchPageOfNoResultsLooksUpNoVideos() throws Exception {
+        setSearchResponse(0, null);
+        YoutubeSearchSession.Page page = newSession().fetchPage(null);
+        assertEquals(Collections.emptyList(), page.results);
+        synchronized (this) {
+            assertEquals(0, mVideosRequests.size());
+        }
+    }
+
+    @Test
+    public void fetchPageFailsWhenVideosFail() throws Exception {
+        setSearchResponse(20, null);
+        synchronized (this) {
+            mVideosFail = true;
+        }
+        try {
+            newSession().fetchPage(null);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closeDisconnectsTheResponseBeingRead() throws Exception {
+        // The JDK's HttpURLConnection can't be disconnected under a blocked read, Android's
+        // can: the transport is faked here, with a response that stalls until closed.
+        final StalledContent content = new StalledContent(searchResponse(20, null));
+        final YoutubeSearchSession session =
+                new YoutubeSearchSession(stalledSearchService(content), "abba", null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<YoutubeSearchSession.Page> fetch = executor.submit(
+                    new Callable<YoutubeSearchSession.Page>() {
+                        @Override
+                        public YoutubeSearchSession.Page call() throws IOException {
+                            return session.fetchPage(null);
+                        }
+                    });
+            assertTrue(content.mStalled.await(5, TimeUnit.SECONDS));
+            session.close();
+            try {
+                fetch.get(5, TimeUnit.SECONDS);
+                fail("Expected the search to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closedSessionSendsNoVideosBatch() throws Exception {
+        setSearchResponse(40, null);
+        YoutubeSearchSession session = newSession();
+        session.close();
+        try {
+            session.fetchPage(null);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        synchronized (this) {
+            assertEquals(0, mVideosRequests.size());
+        }
+    }
+
+    @Test
+    public void pageFetchedBeforeCloseIsNotAddedAfterIt() throws Exception {
+        setSearchResponse(20, null);
+        FakeCatalog catalog = new FakeCatalog();
+        catalog.mBlocked = new CountDownLatch(1);
+        YoutubeSearchSession session = new YoutubeSearchSession(mService, "abba", null, catalog);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        session.setListener(new YoutubeSearchSession.Listener() {
+            @Override
+            public void onPageLoaded(YoutubeSearchSession session, int added) {
+                loaded.countDown();
+            }
+        });
+        session.loadFirstPage(null);
+        // The page is fetched and on its way to the catalog, which is locked by someone else.
+        assertTrue(catalog.mAdding.await(5, TimeUnit.SECONDS));
+        session.close();
+        catalog.mBlocked.countDown();
+        assertTrue(catalog.mReturned.await(5, TimeUnit.SECONDS));
+        assertEquals(0, catalog.mAdded.size());
+        assertEquals(1, loaded.getCount());
+    }
+
+    @Test
+    public void sessionClosedWhileFetchingAddsNothing() throws Exception {
+        StalledContent content = new StalledContent(searchResponse(20, null));
+        FakeCatalog catalog = new FakeCatalog();
+        YoutubeSearchSession session = new YoutubeSearchSession(
+                stalledSearchService(content), "abba", null, catalog);
+        session.loadFirstPage(null);
+        assertTrue(content.mStalled.await(5, TimeUnit.SECONDS));
+        session.close();
+
+        // Sessions load one at a time: once a later one added its page, the first is done.
+        setSearchResponse(5, null);
+        FakeCatalog nextCatalog = new FakeCatalog();
+        new YoutubeSearchSession(mService, "abba", null, nextCatalog).loadFirstPage(null);
+        assertTrue(nextCatalog.mReturned.await(5, TimeUnit.SECONDS));
+        assertEquals(1, nextCatalog.mAdded.size());
+        assertEquals(1, catalog.mAdding.getCount());
+    }
+
+    @Test
+    public void staleCachedPageIsAddedThenRefreshed() throws Exception {
+        File file = mFolder.newFile();
+        writeEntry(file, "abba", System.currentTimeMillis()
+                - SearchResultCache.FRESH_MS - TimeUnit.MINUTES.toMillis(1));
+        SearchResultCache cache = new SearchResultCache(file);
+        setSearchResponse(20, "page2");
+        FakeCatalog catalog = new FakeCatalog();
+        new YoutubeSearchSession(mService, "abba", null, catalog).loadFirstPage(cache);
+        assertTrue(catalog.mReturned.await(5, TimeUnit.SECONDS));
+        assertEquals(1, catalog.mAdded.get(0).size());
+
+        // Sessions load one at a time: once a later one added its page, the refresh is done.
+        FakeCatalog nextCatalog = new FakeCatalog();
+        new YoutubeSearchSession(mService, "queen", null, nextCatalog).loadFirstPage(null);
+        assertTrue(nextCatalog.mReturned.await(5, TimeUnit.SECONDS));
+        SearchResultCache.Entry entry = cache.get("abba");
+        assertTrue(entry.isFresh());
+        assertEquals(20, entry.results.size());
+        assertEquals("page2", entry.nextPageToken);
+        assertEquals(1, catalog.mAdded.size());
+    }
+
+    @Test
+    public void freshCachedPageIsNotFetchedAgain() throws Exception {
+        SearchResultCache cache = new SearchResultCache(mFolder.newFile());
+        cache.put("abba", Collections.singletonList(
+                new SearchResultCache.Result(videoId(0), "Title 0", 1000)), null);
+        FakeCatalog catalog = new FakeCatalog();
+        new YoutubeSearchSession(mService, "abba", null, catalog).loadFirstPage(cache);
+        assertTrue(catalog.mReturned.await(5, TimeUnit.SECONDS));
+
+        FakeCatalog nextCatalog = new FakeCatalog();
+        new YoutubeSearchSession(mService, "queen", null, nextCatalog).loadFirstPage(null);
+        assertTrue(nextCatalog.mReturned.await(5, TimeUnit.SECONDS));
+        synchronized (this) {
+            assertEquals(1, mSearchRequests.size());
+            assertEquals("queen", mSearchRequests.get(0).get("q"));
+        }
+        assertFalse(cache.get("abba").results.isEmpty());
+    }
+
+    private YoutubeSearchSession newSession() {
+        return new YoutubeSearchSession(mService, "abba", null);
+    }
+
+    private synchronized void setSearchResponse(int resultCount, String nextPageToken) {
+        mSearchResultCount = resultCount;
+        mNextPageToken = nextPageToken;
+    }
+
+    private static String videoId(int i) {
+        return "video" + i;
+    }
+
+    private static String searchResponse(int resultCount, String nextPageToken) {
+        try {
+            JSONArray items = new JSONArray();
+            for (int i = 0; i < resultCount; i++) {
+                items.put(new JSONObject()
+                        .put("id", new JSONObject()
+                                .put("kind", "youtube#video")
+                                .put("videoId", videoId(i))));
+            }
+            JSONObject response = new JSONObject().put("items", items);
+            if (nextPageToken != null) {
+                response.put("nextPageToken", nextPageToken);
+            }
+            return response.toString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String videosResponse(String[] videoIds) {
+        try {
+            JSONArray items = new JSONArray();
+            for (String videoId : videoIds) {
+                items.put(new JSONObject()
+                        .put("id", videoId)
+                        .put("snippet", new JSONObject().put("title", "Title " + videoId))
+                        .put("contentDetails", new JSONObject().put("duration", "PT1M5S")));
+            }
+            return new JSONObject().put("items", items).toString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A service whose search.list response is the given content, and whose videos.list
+     * responses are empty.
+     */
+    private static YouTube stalledSearchService(final StalledContent content) {
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                        .setContentType("application/json; charset=UTF-8");
+                if (url.contains("/search")) {
+                    response.setContent(content);
+                } else {
+                    response.setContent("{}");
+                }
+                return new MockLowLevelHttpRequest(url).setResponse(response);
+            }
+        };
+        return new YouTube.Builder(transport, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+    }
+
+    /**
+     * A catalog that keeps the pages it is given, and can hold them back, like a catalog
+     * locked by another writer, until told to go on.
+     */
+    private static class FakeCatalog implements YoutubeSearchSession.Catalog {
+        final CountDownLatch mAdding = new CountDownLatch(1);
+        final CountDownLatch mReturned = new CountDownLatch(1);
+        final List<List<MediaMetadataCompat>> mAdded =
+                Collections.synchronizedList(new ArrayList<List<MediaMetadataCompat>>());
+        // Set before the session loads.
+        CountDownLatch mBlocked;
+
+        @Override
+        public int addTracks(List<MediaMetadataCompat> tracks,
+                             MusicProvider.Cancellation cancellation) {
+            mAdding.countDown();
+            try {
+                if (mBlocked != null && !mBlocked.await(5, TimeUnit.SECONDS)) {
+                    throw new AssertionError("Catalog never unblocked");
+                }
+                if (cancellation.isCancelled()) {
+                    return 0;
+                }
+                mAdded.add(tracks);
+                return tracks.size();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            } finally {
+                mReturned.countDown();
+            }
+        }
+    }
+
+    /**
+     * A response body that stops halfway until it is closed, like a socket closed under its
+     * reader.
+     */
+    private static class StalledContent extends InputStream {
+        final CountDownLatch mStalled = new CountDownLatch(1);
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+        private final byte[] mBytes;
+        private int mPosition;
+
+        StalledContent(String body) throws IOException {
+            mBytes = body.getBytes("UTF-8");
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition < mBytes.length / 2) {
+                return mBytes[mPosition++] & 0xFF;
+            }
+            mStalled.countDown();
+            try {
+                if (!mClosed.await(10, TimeUnit.SECONDS)) {
+                    return -1;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Socket closed");
+        }
+
+        @Override
+        public void close() {
+            mClosed.countDown();
+        }
+    }
+
+    // Written in the cache's own format, to make an entry as old as needed.
+    private static void writeEntry(File file, String query, long fetched) throws Exception {
+        JSONObject record = new JSONObject()
+                .put("q", query)
+                .put("t", fetched)
+                .put("r", new JSONArray(Collections.singletonList(new JSONObject()
+                        .put("id", videoId(0))
+                        .put("title", "Title 0")
+                        .put("duration", 1000))));
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(record.toString());
+        writer.write('\n');
+        writer.close();
+    }
+
+    private static Map<String, String> readQuery(HttpExchange exchange) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                query.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
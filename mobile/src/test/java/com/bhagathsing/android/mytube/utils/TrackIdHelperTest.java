@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bhagathsing.android.mytube.utils;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Track IDs are stored in favorites and the catalog journal, so they must never change
+ * between releases: the hash is checked against the XXH64 reference vectors.
+ */
+public class TrackIdHelperTest {
+
+    @Test
+    public void xxHash64MatchesReferenceVectors() throws Exception {
+        assertEquals(0xEF46DB3751D8E999L, TrackIdHelper.xxHash64(utf8("")));
+        assertEquals(0xD24EC4F1A98C6E5BL, TrackIdHelper.xxHash64(utf8("a")));
+        assertEquals(0x44BC2CF5AD770999L, TrackIdHelper.xxHash64(utf8("abc")));
+        // Long enough for the 32-byte stripes.
+        assertEquals(0xFBCEA83C8A378BF1L, TrackIdHelper.xxHash64(
+                utf8("Nobody inspects the spammish repetition")));
+    }
+
+    @Test
+    public void trackIdIsSixteenHexDigits() {
+        String id = TrackIdHelper.createTrackId("Rock", "https://youtu.be/abc");
+        assertEquals(16, id.length());
+        assertTrue(TrackIdHelper.isTrackId(id));
+        assertEquals(new BigInteger(id, 16).longValue(), TrackIdHelper.toKey(id));
+    }
+
+    @Test
+    public void trackIdIgnoresSurroundingWhitespace() {
+        assertEquals(TrackIdHelper.createTrackId("Rock", "https://youtu.be/abc"),
+                TrackIdHelper.createTrackId(" Rock ", "https://youtu.be/abc\n"));
+    }
+
+    @Test
+    public void legacyIdsAreNotTrackIds() {
+        for (String id : TrackIdHelper.createLegacyTrackIds("Rock", "https://youtu.be/abc")) {
+            assertFalse(TrackIdHelper.isTrackId(id));
+        }
+    }
+
+    @Test
+    public void legacyIdsOfSearchResultsUseTheBareVideoId() {
+        List<String> ids = Arrays.asList(
+                TrackIdHelper.createLegacyTrackIds("Search_abba", "https://youtu.be/abc"));
+        assertTrue(ids.contains(String.valueOf("Search_abbaabc".hashCode())));
+        assertTrue(ids.contains(String.valueOf("Search_abbahttps://youtu.be/abc".hashCode())));
+    }
+
+    @Test
+    public void legacyIdsOfRemoteTracksUseTheSourceAlone() {
+        List<String> ids = Arrays.asList(
+                TrackIdHelper.createLegacyTrackIds("Jazz", "http://example.com/a.mp3"));
+        assertTrue(ids.contains(String.valueOf("http://example.com/a.mp3".hashCode())));
+        assertTrue(ids.contains(String.valueOf("Jazzhttp://example.com/a.mp3".hashCode())));
+    }
+
+    private static byte[] utf8(String text) throws Exception {
+        return text.getBytes("UTF-8");
+    }
+}